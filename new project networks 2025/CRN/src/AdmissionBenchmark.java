@@ -0,0 +1,172 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Shows what admission control does for reads while a node is flooded. A node is opened
+// on loopback with a key, and one client reads it over and over with R requests, one at
+// a time, timing each and counting those that get no reply within 50 ms. Meanwhile a
+// number of flooder threads, each with a socket of its own like separate misbehaving
+// nodes, send it N and W requests as fast as they can. It is run with no flood, then
+// with the flood and admission control off, which is how a node starts, then with it
+// turned on at the default limits. It reports the read latencies and losses along with
+// how many requests the workers handled, how many were shed and how many were dropped
+// because the workers were full, all per second.
+// The node's own simulated loss drops one in ten reads even when it is quiet.
+//
+// Usage: java AdmissionBenchmark [flooders] [seconds]
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class AdmissionBenchmark {
+
+    static final long READ_TIMEOUT_MS = 50;
+
+    public static void main(String[] args) {
+        int flooders = 2;
+        int seconds = 3;
+        if (args.length > 0) {
+            flooders = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            seconds = Integer.parseInt(args[1]);
+        }
+
+        try {
+            System.out.println(flooders + " flooders, " + seconds + " s per run, "
+                    + Runtime.getRuntime().availableProcessors() + " cores");
+            System.out.println("run        reads   lost   p50 (ms)  p99 (ms)  max (ms)  handled/s  shed/s     dropped/s");
+            run("quiet", 0, true, 20110, seconds);
+            run("flood off", flooders, false, 20111, seconds);
+            run("flood on", flooders, true, 20112, seconds);
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Exception during AdmissionBenchmark");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    static void run(String name, int flooders, boolean admission, int port, int seconds) throws Exception {
+        Node node = new Node();
+        node.setNodeName("N:admission-bench" + port);
+        node.setProbeInterval(0);
+        if (admission) {
+            node.setAdmissionControl(AdmissionController.DEFAULT_CHEAP_PER_SECOND,
+                    AdmissionController.DEFAULT_EXPENSIVE_PER_SECOND, true);
+        }
+        node.openPort(port);
+        node.write("D:admission-bench", "the value every read should get back");
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] threads = new Thread[flooders];
+        for (int t = 0; t < flooders; ++t) {
+            threads[t] = new Thread(() -> flood(target, running));
+            threads[t].start();
+        }
+
+        // Let the JIT and the queues settle before measuring
+        Thread.sleep(500);
+        NodeMetrics.Snapshot before = node.getMetrics().snapshot();
+        long droppedBefore = node.getDroppedRequests();
+        long start = System.nanoTime();
+        Histogram latency = new Histogram();
+        int reads = 0;
+        int lost = 0;
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            channel.register(selector, SelectionKey.OP_READ);
+            ByteBuffer in = ByteBuffer.allocate(CrnWriter.MAX_DATAGRAM);
+            long deadline = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < deadline) {
+                String id = String.valueOf((char) ('!' + reads / 94 % 94)) + (char) ('!' + reads % 94);
+                ++reads;
+                long sentAt = System.nanoTime();
+                channel.send(ByteBuffer.wrap((id + " R 0 D:admission-bench ").getBytes(StandardCharsets.UTF_8)), target);
+                if (awaitReply(channel, selector, in, id, sentAt + READ_TIMEOUT_MS * 1_000_000)) {
+                    latency.record(System.nanoTime() - sentAt);
+                } else {
+                    ++lost;
+                }
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        NodeMetrics.Snapshot after = node.getMetrics().snapshot();
+        long droppedCount = node.getDroppedRequests() - droppedBefore;
+
+        running.set(false);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long handled = count(after.sent, 'O') - count(before.sent, 'O') + count(after.sent, 'X') - count(before.sent, 'X');
+        long shed = after.rateLimited + after.overloadShed - before.rateLimited - before.overloadShed;
+        Histogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-10s %-7d %-6d %-9.2f %-9.2f %-9.2f %-10.0f %-10.0f %-10.0f%n", name, reads, lost,
+                snapshot.percentile(50) / 1e6, snapshot.percentile(99) / 1e6, snapshot.max() / 1e6,
+                handled / elapsed, shed / elapsed, droppedCount / elapsed);
+    }
+
+    //waits for the S reply with this transaction id, skipping any late replies to
+    //earlier reads, and returns false if it has not come by the deadline
+    static boolean awaitReply(DatagramChannel channel, Selector selector, ByteBuffer in, String id, long deadline) throws Exception {
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1_000_000;
+            if (remaining <= 0) {
+                return false;
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+            in.clear();
+            while (channel.receive(in) != null) {
+                in.flip();
+                if (in.remaining() >= 4 && in.get(0) == id.charAt(0) && in.get(1) == id.charAt(1) && in.get(3) == 'S') {
+                    return true;
+                }
+                in.clear();
+            }
+        }
+    }
+
+    //sends N requests for random hashes and W requests for a spread of keys, reading
+    //and throwing away whatever comes back
+    static void flood(InetSocketAddress target, AtomicBoolean running) {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            ByteBuffer in = ByteBuffer.allocate(CrnWriter.MAX_DATAGRAM);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            byte[] hash = new byte[32];
+            int i = 0;
+            while (running.get()) {
+                String id = String.valueOf((char) ('!' + i / 94 % 94)) + (char) ('!' + i % 94);
+                String request;
+                if (i % 2 == 0) {
+                    random.nextBytes(hash);
+                    request = id + " N " + HashKey.fromBytes(hash).toHex();
+                } else {
+                    request = id + " W 0 D:flood-" + random.nextInt(1000) + " 0 " + i + " ";
+                }
+                ++i;
+                channel.send(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)), target);
+                while (channel.receive(in) != null) {
+                    in.clear();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    static long count(Map<Character, Long> counts, char type) {
+        return counts.getOrDefault(type, 0L);
+    }
+}
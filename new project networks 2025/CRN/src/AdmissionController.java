@@ -0,0 +1,151 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Decides which requests a node takes on, so one busy peer or a spike of lookups cannot crowd out reads.
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//every sender gets two token buckets, one for the cheap requests that go to the light
+//lane and one for the expensive ones that go to the heavy lane. each holds up to a
+//second's worth of tokens and refills at its rate, and a request that finds its bucket
+//empty is shed. a rate of 0 leaves that kind of request unlimited.
+//
+//on top of that the node is overloaded when the dispatcher's lanes fill up, and then it
+//sheds by priority: N and V first, since a lookup can ask another node and a relay is
+//someone else's traffic, then W, C and E once it gets worse. R and G are never shed
+//here, they are only lost when their own lane is actually full. the lanes can be
+//shared by every node in a simulation, so the overload is the whole process's.
+//
+//senders that have gone quiet for IDLE_MS are forgotten once there are MAX_PEERS of
+//them, at most once a second. if they are all still busy, as with spoofed addresses,
+//new senders share one pair of buckets so the map cannot grow without end.
+//
+//a node has none until Node.setAdmissionControl is called, since the limits that suit
+//one deployment would shed the ordinary traffic of a busier one
+final class AdmissionController {
+
+    static final long DEFAULT_CHEAP_PER_SECOND = 2000;
+    static final long DEFAULT_EXPENSIVE_PER_SECOND = 500;
+    // lane fill at which N and V are shed, and at which W, C and E are too
+    static final double SHED_ROUTING_LOAD = 0.5;
+    static final double SHED_UPDATES_LOAD = 0.75;
+    static final int MAX_PEERS = 4096;
+    private static final long IDLE_MS = 10_000;
+    private static final long PRUNE_INTERVAL_MS = 1000;
+
+    enum Verdict { ADMITTED, RATE_LIMITED, OVERLOADED }
+
+    //tokens refilled by the time since the bucket was last used
+    private static final class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        synchronized boolean take(double perSecond, long now) {
+            tokens = Math.min(perSecond, tokens + (now - refilledAt) * perSecond / 1e9);
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private static final class Peer {
+        final Bucket cheap;
+        final Bucket expensive;
+        volatile long lastSeen;
+
+        Peer(long cheapPerSecond, long expensivePerSecond, long now) {
+            this.cheap = new Bucket(cheapPerSecond, now);
+            this.expensive = new Bucket(expensivePerSecond, now);
+            this.lastSeen = now;
+        }
+    }
+
+    private final long cheapPerSecond;
+    private final long expensivePerSecond;
+    private final boolean shedWhenOverloaded;
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    private final Peer overflow;
+    private volatile long nextPruneAt;
+
+    AdmissionController(long cheapPerSecond, long expensivePerSecond, boolean shedWhenOverloaded) {
+        if (cheapPerSecond < 0 || expensivePerSecond < 0) {
+            throw new IllegalArgumentException("Rate limits cannot be negative.");
+        }
+        this.cheapPerSecond = cheapPerSecond;
+        this.expensivePerSecond = expensivePerSecond;
+        this.shedWhenOverloaded = shedWhenOverloaded;
+        this.nextPruneAt = System.nanoTime();
+        this.overflow = new Peer(cheapPerSecond, expensivePerSecond, nextPruneAt);
+    }
+
+    //whether to take on a request of this type from sender, load being how full the
+    //dispatcher's busiest lane is from 0 to 1. the overload is checked first so shed
+    //requests do not use up the sender's tokens
+    Verdict admit(InetSocketAddress sender, char requestType, double load) {
+        if (shedWhenOverloaded && load >= sheddingLoad(requestType)) {
+            return Verdict.OVERLOADED;
+        }
+        boolean expensive = Dispatcher.isHeavy(requestType);
+        long perSecond = expensive ? expensivePerSecond : cheapPerSecond;
+        if (perSecond == 0) {
+            return Verdict.ADMITTED;
+        }
+        long now = System.nanoTime();
+        Peer peer = peer(sender, now);
+        return (expensive ? peer.expensive : peer.cheap).take(perSecond, now) ? Verdict.ADMITTED : Verdict.RATE_LIMITED;
+    }
+
+    //how full the lanes have to be before requests of this type are shed
+    static double sheddingLoad(char requestType) {
+        switch (requestType) {
+            case 'N':
+            case 'V':
+                return SHED_ROUTING_LOAD;
+            case 'W':
+            case 'C':
+            case 'E':
+                return SHED_UPDATES_LOAD;
+            default:
+                return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private Peer peer(InetSocketAddress sender, long now) {
+        Peer peer = peers.get(sender);
+        if (peer == null) {
+            if (peers.size() >= MAX_PEERS) {
+                prune(now);
+                if (peers.size() >= MAX_PEERS) {
+                    return overflow;
+                }
+            }
+            peer = peers.computeIfAbsent(sender, s -> new Peer(cheapPerSecond, expensivePerSecond, now));
+        }
+        peer.lastSeen = now;
+        return peer;
+    }
+
+    private void prune(long now) {
+        if (now - nextPruneAt < 0) {
+            return;
+        }
+        nextPruneAt = now + PRUNE_INTERVAL_MS * 1_000_000;
+        peers.values().removeIf(peer -> now - peer.lastSeen > IDLE_MS * 1_000_000);
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController{cheap=" + cheapPerSecond + "/s, expensive=" + expensivePerSecond
+                + "/s, shedWhenOverloaded=" + shedWhenOverloaded + ", peers=" + peers.size() + "}";
+    }
+}
@@ -0,0 +1,28 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The operations of NodeInterface that wait on other nodes, without blocking the caller.
+
+import java.util.concurrent.CompletableFuture;
+
+//each method sends its requests and returns straight away. the future is completed by
+//a listener thread of the node when the reply that settles it arrives, or by the timer
+//thread when the last request it was waiting on times out, so code chained onto it
+//with thenApply and the like runs on those threads and must not block. the blocking
+//methods of NodeInterface wait on these and throw what they fail with
+interface AsyncNodeInterface {
+
+    CompletableFuture<Boolean> isActiveAsync(String nodeName);
+
+
+    CompletableFuture<Boolean> existsAsync(String key);
+
+
+    CompletableFuture<String> readAsync(String key);
+
+
+    CompletableFuture<Boolean> writeAsync(String key, String value);
+
+
+    CompletableFuture<Boolean> casAsync(String key, String currentValue, String newValue);
+}
@@ -0,0 +1,96 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Compares writing and then reading a set of related keys one at a time with write
+// and read against doing it with writeAll and readAll. Two client nodes join the same
+// local network as LookupBenchmark builds and each works on its own keys. Their location
+// caches are emptied after writing, so the first read has to find every key's nodes
+// again and the second has them all cached.
+//
+// Usage: java BatchBenchmark [numberOfNodes 10-50] [numberOfKeys]
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class BatchBenchmark {
+    public static void main(String[] args) {
+        int numberOfNodes = 30;
+        int numberOfKeys = 100;
+        if (args.length > 0) {
+            int n = Integer.parseInt(args[0]);
+            if (n >= 10 && n <= 50) {
+                numberOfNodes = n;
+            }
+        }
+        if (args.length > 1) {
+            numberOfKeys = Integer.parseInt(args[1]);
+        }
+
+        try {
+            Node[] nodes = new Node[numberOfNodes];
+            String[] names = new String[numberOfNodes];
+            for (int i = 0; i < numberOfNodes; ++i) {
+                names[i] = "N:batch" + i;
+                nodes[i] = new Node();
+                nodes[i].setNodeName(names[i]);
+                nodes[i].openPort(20110 + i);
+            }
+            LookupBenchmark.bootstrap(names, numberOfNodes);
+            Thread.sleep(500);
+
+            System.out.println(numberOfKeys + " keys on " + numberOfNodes + " nodes");
+            System.out.println("method         write (ms)   read (ms)    warm read (ms)   correct");
+            run("per key", nodes[0], "D:Juliet-loop-", numberOfKeys, false);
+            run("readAll/All", nodes[1], "D:Juliet-batch-", numberOfKeys, true);
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Exception during BatchBenchmark");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    static void run(String name, Node client, String prefix, int numberOfKeys, boolean batched) throws Exception {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < numberOfKeys; ++i) {
+            values.put(prefix + i, "value " + i);
+        }
+        List<String> keys = new ArrayList<>(values.keySet());
+
+        long start = System.nanoTime();
+        if (batched) {
+            client.writeAll(values);
+        } else {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                client.write(entry.getKey(), entry.getValue());
+            }
+        }
+        double writeMillis = (System.nanoTime() - start) / 1_000_000.0;
+        client.setLocationCache(1024, 60_000);
+
+        // The first read finds the keys' nodes again, the second has them cached
+        double[] readMillis = new double[2];
+        int correct = 0;
+        for (int round = 0; round < 2; ++round) {
+            correct = 0;
+            start = System.nanoTime();
+            if (batched) {
+                for (KeyResult result : client.readAll(keys).values()) {
+                    if (values.get(result.getKey()).equals(result.getValue())) {
+                        ++correct;
+                    }
+                }
+            } else {
+                for (String key : keys) {
+                    if (values.get(key).equals(client.read(key))) {
+                        ++correct;
+                    }
+                }
+            }
+            readMillis[round] = (System.nanoTime() - start) / 1_000_000.0;
+        }
+
+        System.out.printf("%-14s %-12.0f %-12.0f %-16.0f %d/%d%n", name, writeMillis, readMillis[0], readMillis[1], correct, numberOfKeys);
+    }
+}
@@ -0,0 +1,126 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks that node.CAS stays atomic when lots of threads use it at once.
+// A number of threads each increment a handful of shared counters with a
+// read / CAS retry loop, while another socket floods the node with W messages.
+// If a single increment is lost the final counter values will be short.
+//
+// Usage: java CASStressTest [numberOfThreads] [incrementsPerThread]
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class CASStressTest {
+    public static void main(String[] args) {
+        int numberOfThreads = 8;
+        int incrementsPerThread = 20000;
+        int numberOfCounters = 4;
+
+        if (args.length > 0) {
+            numberOfThreads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            incrementsPerThread = Integer.parseInt(args[1]);
+        }
+
+        try {
+            Node node = new Node();
+            node.setNodeName("N:stress");
+            node.openPort(20110);
+
+            for (int c = 0; c < numberOfCounters; ++c) {
+                node.write("D:counter-" + c, "0");
+            }
+
+            // Remote writes to other keys keep the listener thread busy with the store
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread flooder = new Thread(() -> {
+                try (DatagramSocket ds = new DatagramSocket()) {
+                    int i = 0;
+                    while (running.get()) {
+                        String id = "" + (char) ('a' + (i / 26) % 26) + (char) ('a' + i % 26);
+                        String message = id + " W 0 D:flood-" + (i % 500) + " 0 " + i + " ";
+                        byte[] contents = message.getBytes(StandardCharsets.UTF_8);
+                        ds.send(new DatagramPacket(contents, contents.length, InetAddress.getLoopbackAddress(), 20110));
+                        ++i;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            flooder.start();
+
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[numberOfThreads];
+            long[] retries = new long[numberOfThreads];
+            int increments = incrementsPerThread;
+            for (int t = 0; t < numberOfThreads; ++t) {
+                int id = t;
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < increments; ++i) {
+                            String key = "D:counter-" + (i % numberOfCounters);
+                            while (true) {
+                                String current = node.read(key);
+                                String next = Integer.toString(Integer.parseInt(current) + 1);
+                                if (node.CAS(key, current, next)) {
+                                    break;
+                                }
+                                ++retries[id];
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Unhandled exception in thread " + id);
+                        e.printStackTrace(System.err);
+                    }
+                });
+                threads[t].start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            long elapsed = System.nanoTime() - startTime;
+            running.set(false);
+            flooder.join();
+
+            long totalRetries = 0;
+            for (long r : retries) {
+                totalRetries += r;
+            }
+
+            boolean allCorrect = true;
+            for (int c = 0; c < numberOfCounters; ++c) {
+                int expected = numberOfThreads * ((incrementsPerThread - c + numberOfCounters - 1) / numberOfCounters);
+                String value = node.read("D:counter-" + c);
+                System.out.println("D:counter-" + c + " = " + value + " (expected " + expected + ")");
+                if (!Integer.toString(expected).equals(value)) {
+                    allCorrect = false;
+                }
+            }
+            System.out.println("Increments   : " + numberOfThreads * incrementsPerThread);
+            System.out.println("CAS retries  : " + totalRetries);
+            System.out.println("Time (ms)    : " + elapsed / 1_000_000);
+
+            if (allCorrect) {
+                System.out.println("No increments were lost");
+                System.exit(0);
+            } else {
+                System.out.println("Increments were lost!");
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            System.err.println("Exception during CASStressTest");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Compares the cost of handling R and W requests the way Node used to, decoding
+// each datagram into a String, splitting it and concatenating the reply, with the
+// CrnMessage / CrnWriter codec that works on the bytes in place. It reports the
+// operations per second and the bytes allocated per message on one thread.
+//
+// Usage: java CodecBenchmark [iterations]
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+class CodecBenchmark {
+
+    static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = 2_000_000;
+        if (args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        Map<String, String> store = new HashMap<>();
+        store.put("D:benchmark key", "a value that is a little longer than the key");
+        byte[] read = "ab R 1 D:benchmark key ".getBytes(StandardCharsets.UTF_8);
+        byte[] write = "cd W 1 D:benchmark key 9 a value that is a little longer than the key ".getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("message   path     ops/s          bytes/op");
+        for (byte[] request : new byte[][]{read, write}) {
+            String name = request == read ? "R -> S" : "W -> X";
+            for (int round = 0; round < 2; ++round) {
+                boolean print = round == 1;
+                measure(name, "string", iterations, print, () -> oldPath(request, store));
+                ByteBuffer buffer = ByteBuffer.allocate(CrnWriter.MAX_DATAGRAM);
+                buffer.put(request).flip();
+                CrnMessage message = new CrnMessage();
+                CrnWriter writer = new CrnWriter();
+                measure(name, "codec", iterations, print, () -> newPath(buffer, message, writer, store));
+            }
+        }
+    }
+
+    static void measure(String name, String path, int iterations, boolean print, Runnable op) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (print) {
+            System.out.printf("%-9s %-8s %-14.0f %.1f%n", name, path, iterations / (elapsed / 1e9), (double) allocated / iterations);
+        }
+    }
+
+    // What processNodeMessage and sendResponse did before the codec
+    static void oldPath(byte[] request, Map<String, String> store) {
+        String message = new String(request, 0, request.length);
+        String[] parts = message.trim().split("\\s+", 3);
+        String transactionId = parts[0];
+        String reply;
+        if (parts[1].equals("R")) {
+            String[] keyParts = parts[2].split("\\s+", 2);
+            String value = store.get(decode(keyParts[0] + " " + keyParts[1] + " "));
+            reply = transactionId + " S " + (value != null ? "Y " + encode(value) : "N ");
+        } else {
+            String[] kv = parts[2].split(" ", 4);
+            String key = decode(kv[0] + " " + kv[1] + " ");
+            String value = decode(kv[2] + " " + kv[3] + " ");
+            store.put(key, value);
+            reply = transactionId + " X A";
+        }
+        sink = reply.getBytes();
+    }
+
+    static void newPath(ByteBuffer buffer, CrnMessage message, CrnWriter writer, Map<String, String> store) {
+        message.parse(buffer);
+        String transactionId = message.transactionId();
+        if (message.type() == 'R') {
+            String value = store.get(message.string(0));
+            writer.begin(transactionId, 'S');
+            if (value != null) {
+                writer.ascii("Y ").string(value);
+            } else {
+                writer.ascii("N ");
+            }
+        } else {
+            store.put(message.string(0), message.string(1));
+            writer.begin(transactionId, 'X').ascii('A');
+        }
+        sink = writer.flip();
+    }
+
+    static String encode(String s) {
+        int spaceCount = s.length() - s.replace(" ", "").length();
+        return spaceCount + " " + s + " ";
+    }
+
+    static String decode(String encoded) {
+        int firstSpace = encoded.indexOf(' ');
+        return encoded.substring(firstSpace + 1, encoded.length() - 1);
+    }
+}
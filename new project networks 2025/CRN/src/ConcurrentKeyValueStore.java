@@ -0,0 +1,46 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// In memory key/value store backed by a ConcurrentHashMap.
+
+import java.util.concurrent.ConcurrentHashMap;
+
+//compare and set runs inside compute, which only locks the one hash bin holding
+//the key, so updates to different keys never wait on each other
+class ConcurrentKeyValueStore implements KeyValueStore {
+
+    private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return entries.put(key, value);
+    }
+
+    @Override
+    public Swap compareAndSwap(String key, String expectedValue, String newValue) {
+        Swap[] result = {Swap.REFUSED};
+        entries.compute(key, (k, currentValue) -> {
+            if (currentValue == null || currentValue.equals(expectedValue)) {
+                result[0] = currentValue == null ? Swap.ADDED : Swap.REPLACED;
+                return newValue;
+            }
+            return currentValue;
+        });
+        return result[0];
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,244 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A CRN message parsed in place from the buffer it was received into.
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//parse only records where the transaction id, type and encoded strings sit in the
+//buffer, nothing is copied until a caller asks for a string. one instance is reused
+//for every datagram a thread receives, so it is only valid until the next parse.
+//
+//encoded strings are a count of the spaces in the text, a space, the text and a
+//closing space. the text is UTF-8, which never uses the space byte inside a
+//multi-byte character, so the spaces can be counted on the raw bytes
+final class CrnMessage {
+
+    static final int MAX_STRINGS = 16;
+
+    // transaction ids made of two printable bytes are handed out from this table
+    private static final int FIRST_ID_BYTE = 0x21;
+    private static final int ID_BYTES = 0x7f - FIRST_ID_BYTE;
+    private static final String[] TRANSACTION_IDS = new String[ID_BYTES * ID_BYTES];
+
+    static {
+        for (int i = 0; i < ID_BYTES; i++) {
+            for (int j = 0; j < ID_BYTES; j++) {
+                TRANSACTION_IDS[i * ID_BYTES + j] = String.valueOf((char) (FIRST_ID_BYTE + i)) + (char) (FIRST_ID_BYTE + j);
+            }
+        }
+    }
+
+    private ByteBuffer buffer;
+    private int start;
+    private int limit;
+    private char type;
+    private int payloadStart;
+    private int restStart;
+    private final int[] stringStart = new int[MAX_STRINGS];
+    private final int[] stringEnd = new int[MAX_STRINGS];
+    private int stringCount;
+    private CrnMessage inner;
+
+    //parses the bytes between the buffer's position and limit, returns false if they
+    //are not a well formed message. the buffer's position and limit are not changed
+    boolean parse(ByteBuffer buffer) {
+        return parse(buffer, buffer.position(), buffer.limit());
+    }
+
+    boolean parse(ByteBuffer buffer, int start, int limit) {
+        this.buffer = buffer;
+        this.start = start;
+        this.limit = limit;
+        this.stringCount = 0;
+
+        // two byte transaction id, a space and a one byte type
+        if (limit - start < 4 || buffer.get(start) == ' ' || buffer.get(start + 1) == ' ' || buffer.get(start + 2) != ' ') {
+            return false;
+        }
+        type = (char) (buffer.get(start + 3) & 0xff);
+        if (start + 4 < limit && buffer.get(start + 4) != ' ') {
+            return false;
+        }
+        payloadStart = Math.min(start + 5, limit);
+        restStart = payloadStart;
+
+        switch (type) {
+            case 'G':
+                return true;
+            case 'H':
+            case 'R':
+            case 'E':
+                return readStrings(payloadStart, 1, 1);
+            case 'W':
+                return readStrings(payloadStart, 2, 2);
+            case 'C':
+                return readStrings(payloadStart, 3, 3);
+            case 'N':
+                return limit - payloadStart >= 64;
+            case 'O':
+                return readStrings(payloadStart, 0, MAX_STRINGS);
+            case 'V':
+                return readStrings(payloadStart, 1, 1) && restStart < limit;
+            case 'I':
+                readStrings(payloadStart, 0, 1);
+                return true;
+            case 'S':
+                // Y or N, then the value when there is one
+                if (payloadStart >= limit) {
+                    return false;
+                }
+                if (status() == 'Y') {
+                    return readStrings(payloadStart + 2, 1, 1);
+                }
+                return true;
+            case 'F':
+            case 'X':
+            case 'D':
+                return payloadStart < limit;
+            default:
+                return false;
+        }
+    }
+
+    char type() {
+        return type;
+    }
+
+    //the transaction id, the same String object every time for printable ids
+    String transactionId() {
+        return transactionId(buffer, start);
+    }
+
+    //the transaction id of the message starting at offset, without parsing the rest
+    static String transactionId(ByteBuffer buffer, int offset) {
+        int b0 = buffer.get(offset) & 0xff;
+        int b1 = buffer.get(offset + 1) & 0xff;
+        if (b0 >= FIRST_ID_BYTE && b0 < FIRST_ID_BYTE + ID_BYTES && b1 >= FIRST_ID_BYTE && b1 < FIRST_ID_BYTE + ID_BYTES) {
+            return TRANSACTION_IDS[(b0 - FIRST_ID_BYTE) * ID_BYTES + (b1 - FIRST_ID_BYTE)];
+        }
+        return new String(new byte[]{(byte) b0, (byte) b1}, StandardCharsets.ISO_8859_1);
+    }
+
+    //the single character after the type of S, F, X and D replies
+    char status() {
+        return (char) (buffer.get(payloadStart) & 0xff);
+    }
+
+    String string(int index) {
+        int from = stringStart[index];
+        int length = stringEnd[index] - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //compares a decoded string's first bytes with an ascii prefix without decoding it
+    boolean stringStartsWith(int index, String prefix) {
+        int from = stringStart[index];
+        if (stringEnd[index] - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(from + i) != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //the hashID carried by an N request, or null if it is not valid hex
+    HashKey hashKey() {
+        return HashKey.fromHex(buffer, payloadStart);
+    }
+
+    //everything after the type and its space, for handing replies to their requests
+    String payload() {
+        int length = limit - payloadStart;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + payloadStart, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(payloadStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //the message wrapped inside a V relay message, parsed from the same buffer
+    CrnMessage inner() {
+        if (inner == null) {
+            inner = new CrnMessage();
+        }
+        return inner.parse(buffer, restStart, limit) ? inner : null;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int innerStart() {
+        return restStart;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[limit - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //reads between min and max encoded strings from position onwards
+    private boolean readStrings(int position, int min, int max) {
+        while (stringCount < max && position < limit) {
+            int end = readString(position, stringCount);
+            if (end < 0) {
+                break;
+            }
+            stringCount++;
+            position = end;
+        }
+        restStart = position;
+        return stringCount >= min;
+    }
+
+    //finds the text of the encoded string at position, returns the offset after it or -1
+    private int readString(int position, int index) {
+        int spaces = 0;
+        int digits = 0;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == ' ') {
+                break;
+            }
+            if (b < '0' || b > '9' || ++digits > 9) {
+                return -1;
+            }
+            spaces = spaces * 10 + (b - '0');
+            position++;
+        }
+        if (digits == 0 || position >= limit) {
+            return -1;
+        }
+        int textStart = ++position;
+        while (position < limit) {
+            if (buffer.get(position) == ' ' && spaces-- == 0) {
+                stringStart[index] = textStart;
+                stringEnd[index] = position;
+                return position + 1;
+            }
+            position++;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Builds CRN messages directly into a reusable direct buffer.
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//a thread borrows one of these while it builds a message, so building a message does
+//not create any objects and the finished buffer can be handed to the channel without
+//being copied. strings are written as UTF-8 with their space count in front
+final class CrnWriter {
+
+    static final int MAX_DATAGRAM = 65507;
+
+    // writers are pooled rather than kept per thread, since worker threads may be
+    // virtual threads that only live for one request
+    private static final Queue<CrnWriter> POOL = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer buffer;
+
+    CrnWriter() {
+        this(MAX_DATAGRAM);
+    }
+
+    CrnWriter(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    //a free writer from the pool, which must be given back with release once the
+    //message has been sent
+    static CrnWriter acquire() {
+        CrnWriter writer = POOL.poll();
+        return writer != null ? writer : new CrnWriter();
+    }
+
+    void release() {
+        POOL.offer(this);
+    }
+
+    //starts a new message with its transaction id, type and the space after the type
+    CrnWriter begin(String transactionId, char type) {
+        buffer.clear();
+        return header(transactionId, type);
+    }
+
+    //writes a transaction id and type after whatever is already in the buffer, so a
+    //message can follow the V prefixes that relay it
+    CrnWriter header(String transactionId, char type) {
+        buffer.put((byte) transactionId.charAt(0));
+        buffer.put((byte) transactionId.charAt(1));
+        buffer.put((byte) ' ');
+        buffer.put((byte) type);
+        buffer.put((byte) ' ');
+        return this;
+    }
+
+    //starts an empty buffer, for messages put together from pieces
+    CrnWriter reset() {
+        buffer.clear();
+        return this;
+    }
+
+    //writes an encoded string: the number of spaces in it, a space, the text and a space
+    CrnWriter string(String value) {
+        int spaces = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == ' ') {
+                spaces++;
+            }
+        }
+        number(spaces);
+        buffer.put((byte) ' ');
+        utf8(value);
+        buffer.put((byte) ' ');
+        return this;
+    }
+
+    //writes characters that are known to be ascii, such as a hex hashID or Y / N
+    CrnWriter ascii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    CrnWriter ascii(char c) {
+        buffer.put((byte) c);
+        return this;
+    }
+
+    //copies bytes straight from another buffer, for forwarding part of a message
+    CrnWriter bytes(ByteBuffer source, int from, int to) {
+        ByteBuffer part = source.duplicate();
+        part.limit(to).position(from);
+        buffer.put(part);
+        return this;
+    }
+
+    CrnWriter bytes(byte[] source) {
+        buffer.put(source);
+        return this;
+    }
+
+    //overwrites the transaction id of a message that starts at position in this writer
+    CrnWriter transactionId(int position, String transactionId) {
+        buffer.put(position, (byte) transactionId.charAt(0));
+        buffer.put(position + 1, (byte) transactionId.charAt(1));
+        return this;
+    }
+
+    //where the next byte will be written
+    int position() {
+        return buffer.position();
+    }
+
+    //the finished message ready to send, valid until this writer is next used
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    //a copy of the finished message, for messages that have to be kept
+    byte[] toBytes() {
+        ByteBuffer message = buffer.duplicate();
+        message.flip();
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return bytes;
+    }
+
+    private void number(int n) {
+        if (n >= 10) {
+            number(n / 10);
+        }
+        buffer.put((byte) ('0' + n % 10));
+    }
+
+    private void utf8(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
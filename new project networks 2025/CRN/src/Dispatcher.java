@@ -0,0 +1,138 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Hands received requests to worker threads so the listener only has to read datagrams.
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//there are two lanes. G, R, E and I requests (and H replies) are cheap and go to the
+//light lane. N, V, W and C can sort the routing table, resolve an address or write
+//to the store, so they go to the heavy lane and cannot hold up the cheap ones.
+//
+//each lane only accepts a fixed number of requests that are queued or running. when
+//it is full the request is dropped and counted, the same as the network losing it,
+//so the listener never blocks and the socket's receive buffer is always drained
+final class Dispatcher {
+
+    static final int DEFAULT_LIGHT_THREADS = 2;
+    static final int DEFAULT_HEAVY_THREADS = 2;
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    //a worker executor and the number of requests it may hold at once
+    private static final class Lane {
+        final ExecutorService executor;
+        final Semaphore capacity;
+        final int size;
+        final AtomicLong dropped = new AtomicLong();
+
+        Lane(ExecutorService executor, int capacity) {
+            this.executor = executor;
+            this.capacity = new Semaphore(capacity);
+            this.size = capacity;
+        }
+
+        //the share of the lane's places taken, from 0 to 1
+        double load() {
+            return (double) (size - capacity.availablePermits()) / size;
+        }
+
+        boolean execute(Runnable task) {
+            if (!capacity.tryAcquire()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        capacity.release();
+                    }
+                });
+                return true;
+            } catch (RuntimeException e) {
+                capacity.release();
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    private final Lane light;
+    private final Lane heavy;
+
+    private Dispatcher(Lane light, Lane heavy) {
+        this.light = light;
+        this.heavy = heavy;
+    }
+
+    //fixed pools of platform threads, each lane holding at most queueSize requests
+    static Dispatcher bounded(String name, int lightThreads, int heavyThreads, int queueSize) {
+        return new Dispatcher(
+                new Lane(Executors.newFixedThreadPool(lightThreads, daemonThreads(name + "-light")), queueSize),
+                new Lane(Executors.newFixedThreadPool(heavyThreads, daemonThreads(name + "-heavy")), queueSize));
+    }
+
+    //a virtual thread per request, each lane holding at most maxInFlight requests.
+    //virtual threads need Java 21, on older runtimes this falls back to bounded pools
+    static Dispatcher virtual(String name, int maxInFlight) {
+        ExecutorService lightExecutor = newVirtualThreadExecutor();
+        ExecutorService heavyExecutor = newVirtualThreadExecutor();
+        if (lightExecutor == null || heavyExecutor == null) {
+            return bounded(name, DEFAULT_LIGHT_THREADS, DEFAULT_HEAVY_THREADS, maxInFlight);
+        }
+        return new Dispatcher(new Lane(lightExecutor, maxInFlight), new Lane(heavyExecutor, maxInFlight));
+    }
+
+    //N, V, W and C requests are the ones that can take a while
+    static boolean isHeavy(char messageType) {
+        return messageType == 'N' || messageType == 'V' || messageType == 'W' || messageType == 'C';
+    }
+
+    //runs the task for a message of this type on its lane, returns false if the lane is full
+    boolean dispatch(char messageType, Runnable task) {
+        return (isHeavy(messageType) ? heavy : light).execute(task);
+    }
+
+    //how full the busier lane is, from 0 when both are empty to 1 when it is full
+    double load() {
+        return Math.max(light.load(), heavy.load());
+    }
+
+    //requests dropped because their lane was full
+    long droppedLight() {
+        return light.dropped.get();
+    }
+
+    long droppedHeavy() {
+        return heavy.dropped.get();
+    }
+
+    //lets the requests already queued finish and takes no more
+    void shutdown() {
+        light.executor.shutdown();
+        heavy.executor.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
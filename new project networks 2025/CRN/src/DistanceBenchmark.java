@@ -0,0 +1,113 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Compares the old way of answering an N request, sorting every known node with a
+// comparator that hashes both names into hex strings, with the closest-k query on
+// the RoutingTable of precomputed HashKeys that Node uses now. The routing table
+// is given unlimited bucket space so that it holds every node, as the old map did.
+//
+// Usage: java DistanceBenchmark [iterationsPerSize]
+
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class DistanceBenchmark {
+
+    static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = 200;
+        if (args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        try {
+            System.out.println("nodes     old (us/op)     new (us/op)     speedup");
+            for (int size : new int[]{100, 1000, 10000}) {
+                Map<String, String> names = new HashMap<>();
+                RoutingTable table = new RoutingTable(HashKey.of("N:self"), Integer.MAX_VALUE);
+                for (int i = 0; i < size; ++i) {
+                    String name = "N:node" + i;
+                    names.put(name, "127.0.0.1:" + (20000 + i));
+                    table.offer(new RoutingTable.Entry(name, HashKey.of(name), new InetSocketAddress("127.0.0.1", 20000 + i)));
+                }
+                String[] targets = new String[64];
+                HashKey[] targetKeys = new HashKey[targets.length];
+                for (int i = 0; i < targets.length; ++i) {
+                    targets[i] = generateHash("D:key" + i);
+                    targetKeys[i] = HashKey.fromHex(targets[i]);
+                }
+
+                // The old path is slow enough at 10k that fewer runs are plenty
+                int oldIterations = Math.max(3, iterations * 100 / size);
+                int newIterations = iterations * 50;
+
+                runOld(names, targets, oldIterations / 2);
+                long start = System.nanoTime();
+                runOld(names, targets, oldIterations);
+                double oldMicros = (System.nanoTime() - start) / 1000.0 / oldIterations;
+
+                runNew(table, targetKeys, newIterations / 2);
+                start = System.nanoTime();
+                runNew(table, targetKeys, newIterations);
+                double newMicros = (System.nanoTime() - start) / 1000.0 / newIterations;
+
+                System.out.printf("%-9d %-15.1f %-15.2f %.0fx%n", size, oldMicros, newMicros, oldMicros / newMicros);
+            }
+        } catch (Exception e) {
+            System.err.println("Exception during DistanceBenchmark");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    static void runOld(Map<String, String> names, String[] targets, int iterations) {
+        for (int i = 0; i < iterations; ++i) {
+            String hash = targets[i % targets.length];
+            List<String> nodeList = new ArrayList<>(names.keySet());
+            nodeList.removeIf(name -> !name.startsWith("N:"));
+            nodeList.sort((n1, n2) -> {
+                try {
+                    return calculateDistance(hash, generateHash(n2)) - calculateDistance(hash, generateHash(n1));
+                } catch (Exception e) {
+                    return 0;
+                }
+            });
+            sink = nodeList.subList(0, 3);
+        }
+    }
+
+    static void runNew(RoutingTable table, HashKey[] targets, int iterations) {
+        for (int i = 0; i < iterations; ++i) {
+            sink = table.closest(targets[i % targets.length], 3);
+        }
+    }
+
+    // The hashing and distance code Node used before HashKey
+    static String generateHash(String input) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hashBytes = digest.digest(input.getBytes("UTF-8"));
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hashBytes) {
+            hexString.append(String.format("%02x", b));
+        }
+        return hexString.toString();
+    }
+
+    static int calculateDistance(String hash1, String hash2) {
+        for (int i = 0; i < hash1.length(); i++) {
+            int val1 = Integer.parseInt(hash1.substring(i, i + 1), 16);
+            int val2 = Integer.parseInt(hash2.substring(i, i + 1), 16);
+            int xor = val1 ^ val2;
+            for (int bit = 3; bit >= 0; bit--) {
+                if ((xor & (1 << bit)) != 0) {
+                    return i * 4 + (3 - bit);
+                }
+            }
+        }
+        return 256;
+    }
+}
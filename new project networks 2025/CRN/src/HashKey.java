@@ -0,0 +1,148 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A 256 bit hashID held as four longs so distances can be worked out without
+// creating any objects.
+
+import java.nio.ByteBuffer;
+
+final class HashKey {
+
+    static final int BITS = 256;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private HashKey(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    //the hashID of a node name or key, as given by HashID.computeHashID
+    static HashKey of(String s) throws Exception {
+        return fromBytes(HashID.computeHashID(s));
+    }
+
+    static HashKey fromBytes(byte[] hash) {
+        return new HashKey(word(hash, 0), word(hash, 8), word(hash, 16), word(hash, 24));
+    }
+
+    //parses the 64 hex digit form used in N messages, returns null if it is malformed
+    static HashKey fromHex(String hex) {
+        if (hex == null || hex.length() != 64) {
+            return null;
+        }
+        long[] words = new long[4];
+        for (int i = 0; i < 64; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            words[i >> 4] = (words[i >> 4] << 4) | digit;
+        }
+        return new HashKey(words[0], words[1], words[2], words[3]);
+    }
+
+    //the same for 64 hex digits sitting in a buffer, so N requests need not be decoded first
+    static HashKey fromHex(ByteBuffer buffer, int offset) {
+        if (buffer.limit() - offset < 64) {
+            return null;
+        }
+        long[] words = new long[4];
+        for (int i = 0; i < 64; i++) {
+            int digit = Character.digit(buffer.get(offset + i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            words[i >> 4] = (words[i >> 4] << 4) | digit;
+        }
+        return new HashKey(words[0], words[1], words[2], words[3]);
+    }
+
+    String toHex() {
+        StringBuilder hex = new StringBuilder(64);
+        for (long word : new long[]{w0, w1, w2, w3}) {
+            String digits = Long.toHexString(word);
+            for (int i = digits.length(); i < 16; i++) {
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    //how many leading bits the two hashIDs have in common, 256 when they are equal.
+    //this is what the old string based calculateDistance returned
+    int matchingBits(HashKey other) {
+        long x = w0 ^ other.w0;
+        if (x != 0) {
+            return Long.numberOfLeadingZeros(x);
+        }
+        x = w1 ^ other.w1;
+        if (x != 0) {
+            return 64 + Long.numberOfLeadingZeros(x);
+        }
+        x = w2 ^ other.w2;
+        if (x != 0) {
+            return 128 + Long.numberOfLeadingZeros(x);
+        }
+        x = w3 ^ other.w3;
+        if (x != 0) {
+            return 192 + Long.numberOfLeadingZeros(x);
+        }
+        return BITS;
+    }
+
+    //the CRN distance between two hashIDs, 0 when they are equal
+    int distance(HashKey other) {
+        return BITS - matchingBits(other);
+    }
+
+    //orders a and b by their full xor distance to this hashID, negative when a is closer
+    int compareDistance(HashKey a, HashKey b) {
+        int c = Long.compareUnsigned(w0 ^ a.w0, w0 ^ b.w0);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(w1 ^ a.w1, w1 ^ b.w1);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(w2 ^ a.w2, w2 ^ b.w2);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compareUnsigned(w3 ^ a.w3, w3 ^ b.w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HashKey)) {
+            return false;
+        }
+        HashKey other = (HashKey) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(w0 ^ w1 ^ w2 ^ w3);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long word(byte[] hash, int offset) {
+        long word = 0;
+        for (int i = 0; i < 8; i++) {
+            word = (word << 8) | (hash[offset + i] & 0xff);
+        }
+        return word;
+    }
+}
@@ -0,0 +1,123 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A lock free histogram of non negative values, such as latencies in nanoseconds.
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//buckets are log-linear the way HdrHistogram's are: values are grouped by their highest
+//set bit and each group is split into SUB_BUCKETS equal steps, so any value is reported
+//within 1/SUB_BUCKETS (about 6%) of what was recorded, from 1 up to Long.MAX_VALUE, in
+//under a thousand counters. record is a couple of atomic adds and never allocates
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    //a copy of the counts so far, which later records do not change
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long copied = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            copied += copy[i];
+        }
+        return new Snapshot(copy, copied, sum.get(), max.get());
+    }
+
+    //values below SUB_BUCKETS have a bucket each, larger ones share theirs with values
+    //that have the same highest bit and the same next SUB_BUCKET_BITS bits
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS * (shift + 1) + subBucket;
+    }
+
+    //the highest value that falls in the bucket
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long next = (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+        return next < 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //the values recorded in both, such as the same histogram from several nodes
+        Snapshot plus(Snapshot other) {
+            long[] added = new long[counts.length];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(added, count + other.count, sum + other.sum, Math.max(max, other.max));
+        }
+
+        //the value that percentile percent of the recorded values are at or below,
+        //to within the bucket size, or 0 if nothing was recorded
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
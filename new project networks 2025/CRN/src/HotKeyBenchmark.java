@@ -0,0 +1,150 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Shows how the hot key cache spreads the reads of popular keys. Nodes are joined by a
+// SimulatedNetwork, a set of keys is written, and then random nodes read keys chosen
+// with a Zipf distribution, so the first few keys get most of the reads the way the
+// jabberwocky verses do in AzureLabTest. It is run once without the cache and once with
+// it on every node, and each time reports how many R requests the busiest nodes and the
+// closest nodes of the hottest key had to answer, next to the mean, along with the read
+// latencies and whether every read got the right value.
+//
+// Usage: java HotKeyBenchmark [name=value ...]
+//   nodes=200          number of nodes
+//   keys=200           distinct keys
+//   reads=20000        reads in each run
+//   zipf=1.2           exponent of the key popularity, higher is more skewed
+//   concurrency=32     reads in flight at once
+//   threshold=20       misses a second that make a key hot
+//   ttl=2000           ms a copy of a hot key is kept
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class HotKeyBenchmark {
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        int numberOfNodes = Integer.parseInt(options.getOrDefault("nodes", "200"));
+        int numberOfKeys = Integer.parseInt(options.getOrDefault("keys", "200"));
+        int reads = Integer.parseInt(options.getOrDefault("reads", "20000"));
+        double zipf = Double.parseDouble(options.getOrDefault("zipf", "1.2"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+        long threshold = Long.parseLong(options.getOrDefault("threshold", "20"));
+        long ttl = Long.parseLong(options.getOrDefault("ttl", "2000"));
+
+        try {
+            // Key i is read in proportion to 1 / (i + 1)^zipf
+            double[] cumulative = new double[numberOfKeys];
+            double total = 0;
+            for (int i = 0; i < numberOfKeys; ++i) {
+                total += 1 / Math.pow(i + 1, zipf);
+                cumulative[i] = total;
+            }
+            System.out.printf("%d nodes, %d keys, %d reads, the hottest key gets %.0f%% of them%n",
+                    numberOfNodes, numberOfKeys, reads, 100 * cumulative[0] / total);
+            System.out.println("cache  reads/s  p50 (ms)  p99 (ms)  busiest R  top 3 share  hottest key's owners  mean R  correct");
+            boolean allCorrect = true;
+            for (boolean cached : new boolean[]{false, true}) {
+                allCorrect &= run(cached, numberOfNodes, numberOfKeys, reads, cumulative, concurrency, threshold, ttl);
+            }
+            System.exit(allCorrect ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Exception during HotKeyBenchmark");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    static boolean run(boolean cached, int numberOfNodes, int numberOfKeys, int reads, double[] cumulative,
+                       int concurrency, long threshold, long ttl) throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(2);
+        Dispatcher workers = Dispatcher.bounded("crn-hot-workers", 2, 2, 1 << 16);
+        Node[] nodes = new Node[numberOfNodes];
+        InetSocketAddress[] addresses = new InetSocketAddress[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; ++i) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName("N:sim" + i);
+            nodes[i].setProbeInterval(0);
+            // Every read is a lookup from scratch, like a new AzureLabTest client's
+            nodes[i].setLocationCache(0, 0);
+            nodes[i].shareDispatcher(workers);
+            if (cached) {
+                nodes[i].enableHotKeyCache(64, threshold, ttl);
+            }
+            addresses[i] = SimulationHarness.simulatedAddress(i);
+            nodes[i].open(network.endpoint(addresses[i]));
+        }
+        SimulationHarness.bootstrap(nodes, addresses, false, network);
+        network.setConditions(0, 500, 500);
+
+        Random random = new Random(42);
+        SimulationHarness.run("join", numberOfNodes, concurrency, () -> {
+            int i = random.nextInt(numberOfNodes);
+            return nodes[i].existsAsync("D:join-" + i);
+        }, value -> true);
+        int[] nextKey = {0};
+        SimulationHarness.run("seed", numberOfKeys, concurrency, () -> {
+            int key = nextKey[0]++;
+            return nodes[random.nextInt(numberOfNodes)].writeAsync("D:hot-" + key, "value of key " + key);
+        }, stored -> stored);
+
+        long[] before = received(nodes);
+        SimulationHarness.Results results = SimulationHarness.run("read", reads, concurrency, () -> {
+            int key = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+            key = key < 0 ? -key - 1 : key;
+            String expected = "value of key " + key;
+            return nodes[random.nextInt(numberOfNodes)].readAsync("D:hot-" + key).thenApply(expected::equals);
+        }, correct -> correct);
+        long[] after = received(nodes);
+
+        long[] load = new long[numberOfNodes];
+        long sum = 0;
+        for (int i = 0; i < numberOfNodes; ++i) {
+            load[i] = after[i] - before[i];
+            sum += load[i];
+        }
+        // The three nodes closest to the hottest key are the ones that store it
+        HashKey hottest = HashKey.of("D:hot-0");
+        Integer[] byDistance = new Integer[numberOfNodes];
+        HashKey[] nodeHashes = new HashKey[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; ++i) {
+            byDistance[i] = i;
+            nodeHashes[i] = HashKey.of("N:sim" + i);
+        }
+        Arrays.sort(byDistance, (a, b) -> hottest.compareDistance(nodeHashes[a], nodeHashes[b]));
+        long hottestOwners = 0;
+        for (int i = 0; i < 3; ++i) {
+            hottestOwners = Math.max(hottestOwners, load[byDistance[i]]);
+        }
+        long[] sorted = load.clone();
+        Arrays.sort(sorted);
+        long top3 = sorted[numberOfNodes - 1] + sorted[numberOfNodes - 2] + sorted[numberOfNodes - 3];
+
+        Histogram.Snapshot latency = results.latency.snapshot();
+        boolean correct = results.succeeded.get() == reads;
+        System.out.printf("%-6s %-8.0f %-9.2f %-9.2f %-10d %-12s %-21d %-7.0f %s%n", cached ? "on" : "off",
+                reads / (results.elapsedNanos / 1e9), latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                sorted[numberOfNodes - 1], String.format("%.1f%%", 100.0 * top3 / sum), hottestOwners,
+                (double) sum / numberOfNodes, correct ? "yes" : results.succeeded.get() + "/" + reads);
+        network.shutdown();
+        workers.shutdown();
+        return correct;
+    }
+
+    static long[] received(Node[] nodes) {
+        long[] counts = new long[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            counts[i] = nodes[i].getMetrics().snapshot().received.getOrDefault('R', 0L);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,165 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Spots keys this node is asked for often without holding them, and keeps copies of them.
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+//every lookup sends R to each node it passes through, so a node just short of a popular
+//key's closest nodes is asked for it by nearly every reader that does not already know
+//where it is. the R requests this node cannot answer are counted per key with the
+//space-saving algorithm: capacity counters, and a key without one takes over the
+//smallest, inheriting its count as a possible overestimate. counts start again every
+//windowMillis, so a key is hot once at least threshold of its misses in a window are
+//certain. a hot key is fetched from its closest nodes and kept for ttlMillis, during
+//which R requests for it are answered here and the lookup stops one step early. the
+//more popular the key, the more nodes on the way to it cross the threshold and share
+//its reads. a copy can be up to ttlMillis out of date
+class HotKeyCache {
+
+    private static final class Counter {
+        long count;
+        long error;
+
+        Counter(long count, long error) {
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static final long DEFAULT_WINDOW_MS = 1000;
+
+    private final int capacity;
+    private final long threshold;
+    private final long windowMillis;
+    private final long ttlMillis;
+    private final Map<String, Counter> counters = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> fetching = new HashSet<>();
+    private long windowStart = System.currentTimeMillis();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+
+    HotKeyCache(int capacity, long threshold, long windowMillis, long ttlMillis) {
+        if (capacity < 1 || threshold < 1 || windowMillis < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Hot key capacity, threshold, window and ttl must be at least 1.");
+        }
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.windowMillis = windowMillis;
+        this.ttlMillis = ttlMillis;
+    }
+
+    //the copy of the key, or null if there is none that has not expired
+    synchronized String value(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    //counts a request for a key this node could not answer. returns true when the key
+    //is hot and should be fetched now, which is only ever true once until fetched is called
+    synchronized boolean recordMiss(String key) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= windowMillis) {
+            counters.clear();
+            windowStart = now;
+        }
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+        } else if (counters.size() < capacity) {
+            counter = new Counter(1, 0);
+            counters.put(key, counter);
+        } else {
+            counter = takeSmallest(key);
+        }
+        if (counter.count - counter.error < threshold || fetching.contains(key)) {
+            return false;
+        }
+        fetching.add(key);
+        fetches.incrementAndGet();
+        return true;
+    }
+
+    //the outcome of a fetch recordMiss asked for, value null if it could not be found
+    synchronized void fetched(String key, String value) {
+        fetching.remove(key);
+        if (value == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (entries.size() >= capacity && !entries.containsKey(key)) {
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            if (entries.size() >= capacity) {
+                return;
+            }
+        }
+        entries.put(key, new Entry(value, now + ttlMillis));
+    }
+
+    //this node now holds the key itself, so any copy is out of date
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getFetchCount() {
+        return fetches.get();
+    }
+
+    //hands the counter with the smallest count to a new key, keeping that count as the
+    //new key's possible overestimate
+    private Counter takeSmallest(String key) {
+        Iterator<Map.Entry<String, Counter>> it = counters.entrySet().iterator();
+        Map.Entry<String, Counter> smallest = it.next();
+        while (it.hasNext()) {
+            Map.Entry<String, Counter> next = it.next();
+            if (next.getValue().count < smallest.getValue().count) {
+                smallest = next;
+            }
+        }
+        Counter counter = smallest.getValue();
+        counters.remove(smallest.getKey());
+        counter.error = counter.count;
+        counter.count++;
+        counters.put(key, counter);
+        return counter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HotKeyCache{cached=" + entries.size() + ", counted=" + counters.size()
+                + ", hits=" + hits.get() + ", fetches=" + fetches.get() + "}";
+    }
+}
@@ -0,0 +1,60 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// What happened to one key of a readAll or writeAll.
+
+//a batch carries on past keys that fail, so each key gets its own result rather than
+//the whole call throwing
+final class KeyResult {
+
+    enum Status {
+        FOUND,      // read, the value is set
+        NOT_FOUND,  // read, the closest nodes do not have the key
+        STORED,     // write, enough replicas stored it
+        FAILED      // read or write, the nodes could not be reached or did not store it
+    }
+
+    private final String key;
+    private final Status status;
+    private final String value;
+
+    private KeyResult(String key, Status status, String value) {
+        this.key = key;
+        this.status = status;
+        this.value = value;
+    }
+
+    static KeyResult found(String key, String value) {
+        return new KeyResult(key, Status.FOUND, value);
+    }
+
+    static KeyResult notFound(String key) {
+        return new KeyResult(key, Status.NOT_FOUND, null);
+    }
+
+    static KeyResult stored(String key) {
+        return new KeyResult(key, Status.STORED, null);
+    }
+
+    static KeyResult failed(String key) {
+        return new KeyResult(key, Status.FAILED, null);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Status getStatus() {
+        return status;
+    }
+
+    //the value read, or null unless the status is FOUND
+    String getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value == null ? key + " " + status : key + " " + status + " " + value;
+    }
+}
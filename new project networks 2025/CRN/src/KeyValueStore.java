@@ -0,0 +1,30 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The key/value pairs a node is responsible for storing.
+
+//every method has to be safe to call from the listener threads and from any number
+//of application threads at once
+interface KeyValueStore {
+
+    enum Swap { REPLACED, ADDED, REFUSED }
+
+    String get(String key);
+
+    boolean containsKey(String key);
+
+    //stores the value and returns the one it replaced, or null if the key was new
+    String put(String key, String value);
+
+    //atomically replaces the value if it currently equals expectedValue, a key that
+    //is not stored yet is always set. whether the key was there is decided in the same
+    //step, so ADDED and REPLACED can be told apart without a race
+    Swap compareAndSwap(String key, String expectedValue, String newValue);
+
+    //compareAndSwap for callers that only need to know if the new value was stored
+    default boolean compareAndSet(String key, String expectedValue, String newValue) {
+        return compareAndSwap(key, expectedValue, newValue) != Swap.REFUSED;
+    }
+
+    int size();
+}
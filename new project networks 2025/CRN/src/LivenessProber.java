@@ -0,0 +1,98 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks on the nodes in the routing table that have gone quiet.
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+//every TICK_MILLIS it looks at each known node and sends it a G if one is due. a node
+//heard from within idleMillis is left alone, since whatever it sent shows it is alive.
+//one that has gone quiet is probed every idleMillis, a suspect one every
+//SUSPECT_PROBE_MILLIS so it is settled quickly, and a dead one only every
+//DEAD_PROBE_MILLIS in case it comes back. a node never has more than one probe out.
+//the probes go through the node's normal requests, so their replies and timeouts are
+//what update each peer's liveness
+class LivenessProber {
+
+    static final long DEFAULT_IDLE_MILLIS = 5000;
+    static final long TICK_MILLIS = 500;
+    static final long SUSPECT_PROBE_MILLIS = 1000;
+    static final long DEAD_PROBE_MILLIS = 30_000;
+
+    private final long idleMillis;
+    private final Supplier<List<RoutingTable.Entry>> nodes;
+    private final Function<InetSocketAddress, PeerStats> stats;
+    private final Function<InetSocketAddress, CompletableFuture<String>> probe;
+
+    private final Set<InetSocketAddress> probing = ConcurrentHashMap.newKeySet();
+    private final Map<InetSocketAddress, Long> lastProbed = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> task;
+
+    LivenessProber(long idleMillis, Supplier<List<RoutingTable.Entry>> nodes,
+                   Function<InetSocketAddress, PeerStats> stats,
+                   Function<InetSocketAddress, CompletableFuture<String>> probe) {
+        if (idleMillis < 1) {
+            throw new IllegalArgumentException("Probe interval must be at least 1 ms.");
+        }
+        this.idleMillis = idleMillis;
+        this.nodes = nodes;
+        this.stats = stats;
+        this.probe = probe;
+    }
+
+    synchronized void start(ScheduledExecutorService timer) {
+        if (task == null) {
+            task = timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    //runs on the timer thread, so it only ever sends
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            Set<InetSocketAddress> known = new HashSet<>();
+            for (RoutingTable.Entry node : nodes.get()) {
+                known.add(node.address);
+                PeerStats peer = stats.apply(node.address);
+                long quietSince = Math.max(peer.getLastHeardMillis(), lastProbed.getOrDefault(node.address, 0L));
+                if (now - quietSince >= interval(peer.liveness()) && probing.add(node.address)) {
+                    lastProbed.put(node.address, now);
+                    InetSocketAddress address = node.address;
+                    probe.apply(address).whenComplete((payload, error) -> probing.remove(address));
+                }
+            }
+            lastProbed.keySet().retainAll(known);
+        } catch (RuntimeException e) {
+            // A bad tick must not cancel the ones after it
+        }
+    }
+
+    private long interval(PeerStats.Liveness liveness) {
+        switch (liveness) {
+            case SUSPECT:
+                return SUSPECT_PROBE_MILLIS;
+            case DEAD:
+                return DEAD_PROBE_MILLIS;
+            default:
+                return idleMillis;
+        }
+    }
+}
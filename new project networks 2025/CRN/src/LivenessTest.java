@@ -0,0 +1,76 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks that isActive tells live nodes from dead ones and that the background prober
+// settles which is which. Node 0 is told about two live nodes and a silent socket that
+// never replies. Straight away isActive has to probe each of them, then once the prober
+// has had time to mark the silent one dead the answers should come without any probe.
+//
+// Usage: java LivenessTest [secondsToWait]
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+class LivenessTest {
+    public static void main(String[] args) {
+        int secondsToWait = 15;
+        if (args.length > 0) {
+            secondsToWait = Integer.parseInt(args[0]);
+        }
+
+        try {
+            String[] names = {"N:liveness0", "N:liveness1", "N:liveness2", "N:liveness-silent"};
+            Node[] nodes = new Node[3];
+            for (int i = 0; i < nodes.length; ++i) {
+                nodes[i] = new Node();
+                nodes[i].setNodeName(names[i]);
+                nodes[i].openPort(20110 + i);
+            }
+            // This socket swallows everything sent to it
+            DatagramSocket silent = new DatagramSocket(20113);
+
+            DatagramSocket ds = new DatagramSocket();
+            for (int j = 1; j < names.length; ++j) {
+                String message = "a" + j + " W 0 " + names[j] + " 0 127.0.0.1:" + (20110 + j) + " ";
+                byte[] contents = message.getBytes(StandardCharsets.UTF_8);
+                // Send twice in case the node drops one
+                for (int copy = 0; copy < 2; ++copy) {
+                    ds.send(new DatagramPacket(contents, contents.length, InetAddress.getLoopbackAddress(), 20110));
+                }
+            }
+            ds.close();
+            Thread.sleep(200);
+
+            boolean correct = check(nodes[0], names, "First check");
+            System.out.println("Waiting " + secondsToWait + " s for the prober");
+            Thread.sleep(secondsToWait * 1000L);
+            correct &= check(nodes[0], names, "After probing");
+            System.out.println("Silent node  : " + nodes[0].getPeerStats(names[3]));
+
+            silent.close();
+            System.out.println(correct ? "All answers correct" : "SOME ANSWERS WRONG");
+            System.exit(correct ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Exception during LivenessTest");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    // The live nodes and this node itself should be active, the silent and unknown ones not
+    static boolean check(Node node, String[] names, String label) throws Exception {
+        boolean correct = true;
+        System.out.println(label);
+        for (String name : new String[]{names[0], names[1], names[2], names[3], "N:liveness-unknown"}) {
+            boolean expected = !name.contains("silent") && !name.contains("unknown");
+            long start = System.nanoTime();
+            boolean active = node.isActive(name);
+            double millis = (System.nanoTime() - start) / 1_000_000.0;
+            correct &= active == expected;
+            System.out.printf("  %-20s %-6s %8.2f ms%s%n", name, active, millis, active == expected ? "" : "  WRONG");
+        }
+        return correct;
+    }
+}
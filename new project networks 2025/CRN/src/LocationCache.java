@@ -0,0 +1,102 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The nodes recent lookups found closest to each key, so the next lookup can skip discovery.
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//keyed by the key's hashID and kept in least recently used order for ttlMillis. a
+//complete entry is the closest nodes a lookup converged on, which writes can use as
+//the key's replicas. a lookup that stopped early because a node had the value only
+//knows that node and the ones it asked on the way, which is enough to read from
+//again but not to write to, so those entries are marked as not complete
+class LocationCache {
+
+    static final class Entry {
+        final List<RoutingTable.Entry> nodes;
+        final boolean complete;
+        final long expiresAt;
+
+        Entry(List<RoutingTable.Entry> nodes, boolean complete, long expiresAt) {
+            this.nodes = nodes;
+            this.complete = complete;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LinkedHashMap<HashKey, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    LocationCache(int capacity, long ttlMillis) {
+        if (capacity < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Location cache capacity and ttl must be at least 1.");
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashKey, Entry> eldest) {
+                return size() > LocationCache.this.capacity;
+            }
+        };
+    }
+
+    //the nodes last found closest to the key, or null. with completeOnly an entry from
+    //a lookup that stopped early does not count
+    synchronized Entry get(HashKey keyHash, boolean completeOnly) {
+        Entry entry = entries.get(keyHash);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(keyHash);
+            entry = null;
+        }
+        if (entry == null || (completeOnly && !entry.complete)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    //records the nodes a lookup found, an entry that is not complete does not replace
+    //a complete one that is still live
+    synchronized void put(HashKey keyHash, List<RoutingTable.Entry> nodes, boolean complete) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry existing = entries.get(keyHash);
+        if (!complete && existing != null && existing.complete && existing.expiresAt > now) {
+            return;
+        }
+        entries.put(keyHash, new Entry(List.copyOf(nodes), complete, now + ttlMillis));
+    }
+
+    //drops the entry after its nodes failed to answer
+    synchronized void invalidate(HashKey keyHash) {
+        entries.remove(keyHash);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d hits=%d misses=%d", entries.size(), hits.get(), misses.get());
+    }
+}
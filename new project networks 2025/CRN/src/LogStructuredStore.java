@@ -0,0 +1,388 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Key/value store that survives restarts by appending every change to a log file.
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+//the values live in a ConcurrentHashMap as in ConcurrentKeyValueStore, and every put
+//or successful compare and set also appends a record to a batch in memory. a commit
+//thread writes the batch to the end of the log every commitIntervalMillis, so many
+//writes share one write and one fsync. with syncWrites a put waits until its batch is
+//on disk, otherwise it returns straight away and at most one interval of writes can
+//be lost in a crash.
+//
+//once the log holds twice as many records as there are keys it is compacted: the
+//current values are written to a new file that replaces the log in one rename. on
+//startup the log is memory mapped and scanned, and anything after the first torn or
+//corrupt record is cut off.
+//
+//a record is the length of the rest, a CRC32 of the rest, the key's length in bytes,
+//then the key and value in UTF-8
+class LogStructuredStore implements KeyValueStore {
+
+    static final long DEFAULT_COMMIT_INTERVAL_MS = 10;
+    // logs smaller than this are never worth compacting
+    static final long MIN_COMPACTION_RECORDS = 10_000;
+
+    private static final byte[] MAGIC = "CRNLOG1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int RECORD_HEADER = 12;
+
+    private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+    private final Path path;
+    private final boolean syncWrites;
+    private FileChannel log;
+
+    // writes hold the read side while they update the map and append, compaction
+    // takes the write side so its copy of the map matches the batches around it
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 batchCrc = new CRC32();
+    private long batchSequence = 0;       // the batch currently being filled
+    private long committedSequence = -1;  // the last batch that is on disk
+    private long logRecords = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    private final ScheduledExecutorService committer;
+
+    LogStructuredStore(Path path) throws IOException {
+        this(path, false, DEFAULT_COMMIT_INTERVAL_MS);
+    }
+
+    //opens the log at path, creating it if it is not there, and loads what it holds
+    LogStructuredStore(Path path, boolean syncWrites, long commitIntervalMillis) throws IOException {
+        this.path = path;
+        this.syncWrites = syncWrites;
+        recover();
+        log = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "crn-log-" + path.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        String[] previous = new String[1];
+        long sequence;
+        snapshotLock.readLock().lock();
+        try {
+            long[] appendedTo = new long[1];
+            entries.compute(key, (k, currentValue) -> {
+                previous[0] = currentValue;
+                appendedTo[0] = append(key, value);
+                return value;
+            });
+            sequence = appendedTo[0];
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        awaitCommit(sequence);
+        return previous[0];
+    }
+
+    @Override
+    public Swap compareAndSwap(String key, String expectedValue, String newValue) {
+        long[] appendedTo = {-1};
+        Swap[] result = {Swap.REFUSED};
+        snapshotLock.readLock().lock();
+        try {
+            entries.compute(key, (k, currentValue) -> {
+                if (currentValue == null || currentValue.equals(expectedValue)) {
+                    appendedTo[0] = append(key, newValue);
+                    result[0] = currentValue == null ? Swap.ADDED : Swap.REPLACED;
+                    return newValue;
+                }
+                return currentValue;
+            });
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        if (appendedTo[0] >= 0) {
+            awaitCommit(appendedTo[0]);
+        }
+        return result[0];
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    //writes out anything still waiting and closes the log
+    void close() throws IOException {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        synchronized (this) {
+            closed = true;
+            log.close();
+            notifyAll();
+        }
+    }
+
+    //how many records the log holds, current and overwritten
+    synchronized long logRecords() {
+        return logRecords;
+    }
+
+    //adds a record to the current batch and returns the batch's sequence number.
+    //called inside compute so records for one key are in the same order as the map
+    private synchronized long append(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureBatchSpace(RECORD_HEADER + keyBytes.length + valueBytes.length);
+        writeRecord(batch, batchCrc, keyBytes, valueBytes);
+        logRecords++;
+        return batchSequence;
+    }
+
+    private void ensureBatchSpace(int needed) {
+        if (batch.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + needed));
+            batch.flip();
+            bigger.put(batch);
+            batch = bigger;
+        }
+    }
+
+    //with syncWrites, waits for the batch holding a write to reach the disk
+    private void awaitCommit(long sequence) {
+        if (!syncWrites) {
+            return;
+        }
+        synchronized (this) {
+            while (committedSequence < sequence && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Could not write to " + path, failure);
+            }
+        }
+    }
+
+    //runs on the commit thread, writes the waiting batch and compacts if it is time to
+    private void commit() {
+        try {
+            flush();
+            if (needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer full;
+        long sequence;
+        synchronized (this) {
+            if (batch.position() == 0) {
+                return;
+            }
+            full = batch;
+            sequence = batchSequence++;
+            batch = ByteBuffer.allocate(Math.min(full.capacity(), 1024 * 1024));
+        }
+        full.flip();
+        while (full.hasRemaining()) {
+            log.write(full);
+        }
+        log.force(false);
+        synchronized (this) {
+            committedSequence = sequence;
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean needsCompaction() {
+        return logRecords > MIN_COMPACTION_RECORDS && logRecords > 2L * entries.size();
+    }
+
+    //replaces the log with one record per key. the map is copied while writes are held
+    //off, so everything after the copy is in the next batch and goes to the new log
+    private void compact() throws IOException {
+        Map<String, String> snapshot;
+        long recordsAtSnapshot;
+        snapshotLock.writeLock().lock();
+        try {
+            flush();
+            snapshot = new HashMap<>(entries);
+            recordsAtSnapshot = logRecords();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            buffer.put(MAGIC);
+            CRC32 crc = new CRC32();
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] valueBytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                int recordLength = RECORD_HEADER + keyBytes.length + valueBytes.length;
+                if (buffer.remaining() < recordLength) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer = buffer.capacity() < recordLength ? ByteBuffer.allocate(recordLength) : buffer.clear();
+                }
+                writeRecord(buffer, crc, keyBytes, valueBytes);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel old = log;
+        log = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        old.close();
+        synchronized (this) {
+            // records appended since the copy are still in the batch
+            logRecords = snapshot.size() + (logRecords - recordsAtSnapshot);
+        }
+    }
+
+    private static void writeRecord(ByteBuffer out, CRC32 crc, byte[] keyBytes, byte[] valueBytes) {
+        crc.reset();
+        updateInt(crc, keyBytes.length);
+        crc.update(keyBytes);
+        crc.update(valueBytes);
+        out.putInt(4 + keyBytes.length + valueBytes.length)
+                .putInt((int) crc.getValue())
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .put(valueBytes);
+    }
+
+    private static void updateInt(CRC32 crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    //loads the log into the map, starting a new log if there is none
+    private void recover() throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            Files.write(path, MAGIC);
+            return;
+        }
+        long validEnd;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < MAGIC.length || !hasMagic(in.map(FileChannel.MapMode.READ_ONLY, 0, MAGIC.length))) {
+                throw new IOException(path + " is not a CRN store log");
+            }
+            validEnd = scan(in, MAGIC.length, size);
+        }
+        if (validEnd < Files.size(path)) {
+            // Cut off a record that was only partly written when the node stopped
+            try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                out.truncate(validEnd);
+            }
+        }
+    }
+
+    //reads records from position until the end or the first bad one, returns where
+    //the good records end. the file is mapped in pieces so it may be larger than 2GB
+    private long scan(FileChannel in, long position, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        while (position < size) {
+            long window = Math.min(size - position, Integer.MAX_VALUE);
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, position, window);
+            int offset = 0;
+            while (true) {
+                if (window - offset < RECORD_HEADER) {
+                    break;
+                }
+                int bodyLength = mapped.getInt(offset);
+                int storedCrc = mapped.getInt(offset + 4);
+                if (bodyLength < 4 || bodyLength > window - offset - 8) {
+                    break;
+                }
+                int keyLength = mapped.getInt(offset + 8);
+                if (keyLength < 0 || keyLength > bodyLength - 4) {
+                    return position + offset;
+                }
+                ByteBuffer body = mapped.duplicate();
+                body.limit(offset + 8 + bodyLength).position(offset + 8);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != storedCrc) {
+                    return position + offset;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                byte[] valueBytes = new byte[bodyLength - 4 - keyLength];
+                mapped.get(offset + RECORD_HEADER, keyBytes);
+                mapped.get(offset + RECORD_HEADER + keyLength, valueBytes);
+                entries.put(new String(keyBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8));
+                logRecords++;
+                offset += 8 + bodyLength;
+            }
+            if (offset == 0 || window < Integer.MAX_VALUE) {
+                // The record here does not fit in what is left of the file
+                return position + offset;
+            }
+            position += offset;
+        }
+        return position;
+    }
+
+    private static boolean hasMagic(ByteBuffer header) {
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
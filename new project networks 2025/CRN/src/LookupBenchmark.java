@@ -0,0 +1,180 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Measures how long node.read takes on a local network of nodes.
+// Like LocalTest it creates a number of instances of Node.java on this machine,
+// but some of the addresses it hands out belong to silent sockets that never reply,
+// so the lookup has to work around dead nodes the same way it would on the lab network.
+//
+// Usage: java LookupBenchmark [numberOfNodes 10-50] [numberOfSilentNodes] [numberOfReads] [readCacheTtlMillis]
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+class LookupBenchmark {
+    public static void main(String[] args) {
+        int numberOfNodes = 20;
+        int numberOfSilentNodes = 4;
+        int numberOfReads = 200;
+        long readCacheTtl = 0;
+
+        if (args.length > 0) {
+            int n = Integer.parseInt(args[0]);
+            if (n >= 10 && n <= 50) {
+                numberOfNodes = n;
+            }
+        }
+        if (args.length > 1) {
+            numberOfSilentNodes = Math.max(0, Math.min(Integer.parseInt(args[1]), numberOfNodes - 2));
+        }
+        if (args.length > 2) {
+            numberOfReads = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            readCacheTtl = Long.parseLong(args[3]);
+        }
+
+        try {
+            int liveNodes = numberOfNodes - numberOfSilentNodes;
+            Node[] nodes = new Node[liveNodes];
+            String[] names = new String[numberOfNodes];
+            DatagramSocket[] silent = new DatagramSocket[numberOfSilentNodes];
+
+            for (int i = 0; i < numberOfNodes; ++i) {
+                names[i] = "N:bench" + i;
+                if (i < liveNodes) {
+                    nodes[i] = new Node();
+                    nodes[i].setNodeName(names[i]);
+                    nodes[i].openPort(20110 + i);
+                } else {
+                    // These sockets swallow everything sent to them
+                    silent[i - liveNodes] = new DatagramSocket(20110 + i);
+                }
+            }
+
+            bootstrap(names, liveNodes);
+            Thread.sleep(500);
+
+            // Store each key on the nodes closest to it, as the network would
+            Random r = new Random(42);
+            int numberOfKeys = 50;
+            seed(names, liveNodes, numberOfKeys);
+            Thread.sleep(500);
+            if (readCacheTtl > 0) {
+                nodes[0].enableReadCache(1000, readCacheTtl);
+            }
+
+            System.out.println("Reading " + numberOfReads + " keys from node 0 with "
+                    + numberOfNodes + " nodes, " + numberOfSilentNodes + " silent");
+
+            long[] latencies = new long[numberOfReads];
+            int found = 0;
+            int correct = 0;
+            for (int i = 0; i < numberOfReads; ++i) {
+                String key = "D:bench-" + r.nextInt(numberOfKeys);
+                long start = System.nanoTime();
+                String value = nodes[0].read(key);
+                latencies[i] = System.nanoTime() - start;
+                if (value != null) {
+                    ++found;
+                    if (value.equals("value " + key.substring("D:bench-".length()))) {
+                        ++correct;
+                    }
+                }
+            }
+
+            Arrays.sort(latencies);
+            System.out.println("Found        : " + found + "/" + numberOfReads + " (" + correct + " correct)");
+            System.out.println("Median (ms)  : " + latencies[numberOfReads / 2] / 1_000_000.0);
+            System.out.println("p99 (ms)     : " + latencies[Math.min(numberOfReads - 1, (int) (numberOfReads * 0.99))] / 1_000_000.0);
+            System.out.println("Max (ms)     : " + latencies[numberOfReads - 1] / 1_000_000.0);
+            if (readCacheTtl > 0) {
+                System.out.println("Read cache   : " + nodes[0].getReadCache());
+            }
+            System.out.println("Locations    : " + nodes[0].getLocationCache());
+            System.out.println("Metrics of node 0");
+            System.out.println(nodes[0].getMetrics().snapshot());
+
+            for (DatagramSocket s : silent) {
+                s.close();
+            }
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Exception during LookupBenchmark");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    // Gives each live node the address of a few random nodes, silent ones included
+    static void bootstrap(String[] names, int liveNodes) throws Exception {
+        Random r = new Random(23);
+        int n = names.length;
+        double p = Math.log((double) n + 5) / (double) n;
+        DatagramSocket ds = new DatagramSocket();
+        int tx = 0;
+
+        for (int i = 0; i < liveNodes; ++i) {
+            for (int j = 0; j < n; ++j) {
+                if (i != j && (r.nextDouble() <= p || j == (i + 1) % n)) {
+                    String id = "" + (char) ('a' + (tx / 26) % 26) + (char) ('a' + tx % 26);
+                    ++tx;
+                    String message = id + " W 0 " + names[j] + " 0 127.0.0.1:" + (20110 + j) + " ";
+                    byte[] contents = message.getBytes(StandardCharsets.UTF_8);
+                    // Send twice in case the node drops one
+                    for (int copy = 0; copy < 2; ++copy) {
+                        ds.send(new DatagramPacket(contents, contents.length, InetAddress.getLoopbackAddress(), 20110 + i));
+                    }
+                }
+            }
+        }
+        ds.close();
+    }
+
+    // Sends W messages straight to the live nodes closest to each key
+    static void seed(String[] names, int liveNodes, int numberOfKeys) throws Exception {
+        DatagramSocket ds = new DatagramSocket();
+        int tx = 0;
+        for (int k = 0; k < numberOfKeys; ++k) {
+            String key = "D:bench-" + k;
+            for (int i : closestLiveNodes(names, liveNodes, key, 3)) {
+                String id = "" + (char) ('A' + (tx / 26) % 26) + (char) ('A' + tx % 26);
+                ++tx;
+                String message = id + " W 0 " + key + " 1 value " + k + " ";
+                byte[] contents = message.getBytes(StandardCharsets.UTF_8);
+                for (int copy = 0; copy < 2; ++copy) {
+                    ds.send(new DatagramPacket(contents, contents.length, InetAddress.getLoopbackAddress(), 20110 + i));
+                }
+            }
+        }
+        ds.close();
+    }
+
+    // Indexes of the live nodes whose hashID is closest to the key's
+    static List<Integer> closestLiveNodes(String[] names, int liveNodes, String key, int count) throws Exception {
+        byte[] keyHash = HashID.computeHashID(key);
+        List<Integer> order = new ArrayList<>();
+        int[] distance = new int[liveNodes];
+        for (int i = 0; i < liveNodes; ++i) {
+            distance[i] = matchingBits(keyHash, HashID.computeHashID(names[i]));
+            order.add(i);
+        }
+        order.sort((a, b) -> distance[b] - distance[a]);
+        return order.subList(0, Math.min(count, order.size()));
+    }
+
+    static int matchingBits(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; ++i) {
+            int x = (a[i] ^ b[i]) & 0xff;
+            if (x != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(x) - 24;
+            }
+        }
+        return a.length * 8;
+    }
+}
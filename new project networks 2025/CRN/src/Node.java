@@ -8,8 +8,14 @@
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 
 interface NodeInterface {
     void setNodeName(String nodeName) throws Exception;
@@ -42,207 +48,333 @@ interface NodeInterface {
     boolean CAS(String key, String currentValue, String newValue) throws Exception;
 }
 
-public class Node implements NodeInterface {
+public class Node implements NodeInterface, AsyncNodeInterface {
 
     // all the properties for the nodes
     private String nodeIdentifier;
-    private DatagramSocket udpSocket;
-    private Thread messageListenerThread;
+    private HashKey selfHash;
+    // the udp sockets, or a simulated one, set up when the port is opened
+    private Transport transport;
+    private int receiveShards = 1;
     private final boolean enableDebug = false;
 
     // important data structures for the properties of the node
-    private final Map<String, String> dataStore = new HashMap<>();
-    private final Deque<String> relayStack = new ArrayDeque<>();
-    private final Map<String, InetSocketAddress> nodeDirectory = new HashMap<>();
-    private final Map<String, String> nearestNodesCache = new HashMap<>();
-    private final Set<String> processedMessages = new LinkedHashSet<>() {
-
-       //limit of 100 entries to prevent some memory issues from happening
-        @Override
-        public boolean add(String e) {
-            boolean added = super.add(e);
-            if (size() > 1000) {
-                iterator().next();
-                iterator().remove();
-            }
-            return added;
-        }
-    };
-
-    //random num generator for the transaction id's
-    private final Random randomGenerator = new Random();
-
-    // what resolves the state for handling responses
-    private String lastReadValue = null;
-    private boolean lastExistsResult = false;
+    // all of these are shared between the listener threads and the application threads
+    private volatile KeyValueStore dataStore = new ConcurrentKeyValueStore();
+    // recent results of remote reads, null unless enableReadCache has been called
+    private volatile ReadCache readCache = null;
+    // copies of popular keys other nodes hold, null unless enableHotKeyCache has been called
+    private volatile HotKeyCache hotKeys = null;
+    // the nodes recent lookups found closest to each key, null when turned off
+    private volatile LocationCache locationCache = new LocationCache(1024, 10_000);
+    private final Deque<String> relayStack = new ConcurrentLinkedDeque<>();
+    // the V prefix for the relay stack, rebuilt only when the stack changes
+    private volatile RelayPath relayPath = null;
+    private volatile RoutingTable routingTable = new RoutingTable(HashKey.fromBytes(new byte[32]), ROUTING_BUCKET_SIZE);
+    private final Map<InetSocketAddress, PeerStats> peerStats = new ConcurrentHashMap<>();
+    // when peerStats is next swept for peers that are neither in the routing table nor in use
+    private volatile long nextPeerPruneAt = 0;
+    // requests already handled and the replies sent to them, so retransmissions get the same reply
+    // entries expire before a sender may use the transaction id again
+    private final ReplyCache replyCache = new ReplyCache(8192, PendingRequests.REUSE_DELAY_MS);
+    // keys this node is sending its swapped values on for, mapped to whether a swap has
+    // changed the value again since the W requests in flight were sent
+    private final Map<String, Boolean> passingOn = new ConcurrentHashMap<>();
+
+    // requests waiting on a reply, matched up by sender and transaction id
+    // the timer thread is shared by every node in the process
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "crn-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // counters and latency histograms, updated on the packet path without any logging
+    private final NodeMetrics metrics = new NodeMetrics();
+    private final PendingRequests pendingRequests = new PendingRequests(TIMER, metrics);
+    // V messages this node has relayed, so their replies can be sent back
+    private final RelayRoutes relayRoutes = new RelayRoutes(1000, 10_000, pendingRequests);
+
+    // requests are handled on worker threads, set up when the port is opened
+    private Dispatcher dispatcher;
+    // false when the dispatcher came from shareDispatcher, so close leaves it running
+    private boolean ownsDispatcher = false;
+    private int lightWorkerThreads = Dispatcher.DEFAULT_LIGHT_THREADS;
+    private int heavyWorkerThreads = Dispatcher.DEFAULT_HEAVY_THREADS;
+    private int workerQueueSize = Dispatcher.DEFAULT_QUEUE_SIZE;
+    private boolean virtualThreadWorkers = false;
+    // decides which requests get to the workers, null unless setAdmissionControl has been called
+    private volatile AdmissionController admission = null;
+
+    // probes quiet nodes in the background, set up when the port is opened
+    private LivenessProber prober;
+    private ScheduledFuture<?> metricsReports;
+    private long probeIdleMillis = LivenessProber.DEFAULT_IDLE_MILLIS;
+    // isActive trusts anything heard this recently, otherwise it probes for at most
+    // PROBE_TIMEOUT_MS
+    private static final long RECENTLY_HEARD_MS = 10_000;
+    private static final long PROBE_TIMEOUT_MS = 2000;
+
+    // lookup settings, k is the number of nodes returned by an N request
+    private static final int CLOSEST_NODE_COUNT = 3;
+    private static final int ROUTING_BUCKET_SIZE = 8;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    // how long a C request is sent again for before the swap's outcome is given up on
+    private static final long SWAP_RETRANSMIT_MS = 10_000;
+    // how long a peer outside the routing table keeps its stats once nothing is using them
+    private static final long PEER_IDLE_MS = 10_000;
+    private int lookupParallelism = 3;
+    private int writeQuorum = 2;
 
     //it sets the name of the node in which mut begin with N:
     //and throws an illegalargument exception if the name does not begin with n:
     @Override
-    public void setNodeName(String name) {
+    public void setNodeName(String name) throws Exception {
         if (!name.startsWith("N:")) {
             throw new IllegalArgumentException("Node name must start with 'N:'.");
         }
         this.nodeIdentifier = name;
+        this.selfHash = HashKey.of(name);
+        this.routingTable = routingTable.rebase(selfHash);
     }
      //opens a udp port for this node to listen in for incoming messages
-    //and also starts a background listener thread to handle messages that are
-    //coming in and coming out
+    //and also starts a background listener thread for each of its sockets, which
+    //are the only threads that ever receive from the port
     @Override
     public void openPort(int portNumber) throws Exception {
-        udpSocket = new DatagramSocket(portNumber);
+        open(new UdpTransport(portNumber, RECEIVE_BUFFER_SIZE, receiveShards));
         if (enableDebug) {
             System.out.println("UDP socket opened on port " + portNumber);
         }
-        startMessageListener();
     }
 
-    //method is incharge of handling udp messages for the specified duratiom
-    //also messages are received and processed all the ay until timeout is reached
+    //starts the node on any transport, which is how SimulatedNetwork runs many nodes
+    //in one process without a socket each
+    void open(Transport transport) throws IOException {
+        if (this.transport != null) {
+            throw new IllegalStateException("The node is already open.");
+        }
+        if (dispatcher == null) {
+            String name = "crn-" + transport.localAddress().getPort();
+            dispatcher = virtualThreadWorkers
+                    ? Dispatcher.virtual(name, workerQueueSize)
+                    : Dispatcher.bounded(name, lightWorkerThreads, heavyWorkerThreads, workerQueueSize);
+            ownsDispatcher = true;
+        }
+        this.transport = transport;
+        registerMetrics(transport.localAddress());
+        // Each listener thread parses into a message of its own
+        transport.start(() -> {
+            CrnMessage message = new CrnMessage();
+            return (datagram, sender) -> receiveDatagram(message, datagram, sender);
+        });
+        if (probeIdleMillis > 0) {
+            prober = new LivenessProber(probeIdleMillis, () -> routingTable.entries(),
+                    address -> peerStats.computeIfAbsent(address, a -> new PeerStats()),
+                    address -> sendRequest(address, 'G', body -> { }));
+            prober.start(TIMER);
+        }
+    }
+
+    //stops the node. the prober goes first so it sends nothing more, then the transport
+    //so no more requests arrive, and last the dispatcher, which finishes the requests it
+    //already has. replies those send are lost with the transport. a dispatcher shared
+    //with other nodes is left running
+    public void close() {
+        LivenessProber probing = prober;
+        if (probing != null) {
+            probing.stop();
+            prober = null;
+        }
+        if (metricsReports != null) {
+            metricsReports.cancel(false);
+            metricsReports = null;
+        }
+        if (transport != null) {
+            transport.close();
+        }
+        if (dispatcher != null && ownsDispatcher) {
+            dispatcher.shutdown();
+        }
+    }
+
+    //messages are handled by the listener threads as soon as they arrive, so this
+    //just waits for the specified duration (or forever when it is 0) while that happens
 
     @Override
     public void handleIncomingMessages(int timeoutMillis) throws Exception {
-        udpSocket.setSoTimeout(100);
-        byte[] buffer = new byte[2048];//buffer for incoming messages
-        long startTime = System.currentTimeMillis();
+        if (transport == null) {
+            throw new IllegalStateException("openPort must be called before handling messages.");
+        }
+        transport.awaitClose(timeoutMillis);
+    }
 
-        while (timeoutMillis == 0 || (System.currentTimeMillis() - startTime) < timeoutMillis) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            try {
-                udpSocket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-                if (enableDebug) {
-                    System.out.println("Received: " + message);
-                }
-                processNodeMessage(message, packet.getAddress(), packet.getPort());
-            } catch (SocketTimeoutException e) {
-                // Timeout is expected, continue looping
+    //called by the transport for every datagram that arrives, on a listener thread,
+    //with the message that thread reuses. the only work done here is passing on
+    //replies to relayed requests, or parsing it and handing it to dispatchMessage
+    private void receiveDatagram(CrnMessage message, ByteBuffer datagram, InetSocketAddress sender) {
+        if (forwardRelayedReply(datagram, sender)) {
+            metrics.relayedReply();
+            return;
+        }
+        if (message.parse(datagram)) {
+            if (enableDebug) {
+                System.out.println("Received: " + message);
             }
+            metrics.received(message.type());
+            dispatchMessage(message, sender);
+        } else {
+            metrics.parseFailure();
         }
     }
 
+    //replies only complete a future, so they are handled on the listener thread.
+    //requests are copied out of the receive buffer and run on a worker, or
+    //dropped if the dispatcher is already full. before that the admission controller
+    //can shed a request, which costs no more than the parse it has already had
+    private void dispatchMessage(CrnMessage message, InetSocketAddress sender) {
+        char messageType = message.type();
+        if (isReplyType(messageType) && messageType != 'H') {
+            pendingRequests.complete(sender, message.transactionId(), messageType, message.payload());
+            return;
+        }
+
+        // Anything a known node sends, heartbeats included, shows it is alive
+        PeerStats stats = peerStats.get(sender);
+        if (stats != null) {
+            stats.recordHeard();
+        }
+
+        AdmissionController admit = admission;
+        if (admit != null && isRequestType(messageType)) {
+            AdmissionController.Verdict verdict = admit.admit(sender, messageType, dispatcher.load());
+            if (verdict != AdmissionController.Verdict.ADMITTED) {
+                metrics.shed(messageType, verdict == AdmissionController.Verdict.OVERLOADED);
+                return;
+            }
+        }
+
+        byte[] datagram = new byte[message.limit() - message.start()];
+        message.buffer().get(message.start(), datagram);
+        dispatcher.dispatch(messageType, () -> {
+            CrnMessage request = new CrnMessage();
+            if (request.parse(ByteBuffer.wrap(datagram))) {
+                processNodeMessage(request, sender);
+            }
+        });
+    }
+
     //processes crucial incoming crn message and responds accordingly
     //handles various message types like greetings writes reads and relays
 
-    private void processNodeMessage(String message, InetAddress senderAddress, int senderPort) {
+    private void processNodeMessage(CrnMessage message, InetSocketAddress sender) {
+        CrnWriter reply = CrnWriter.acquire();
         try {
-            // Simulate packet loss
-            if (randomGenerator.nextDouble() < 0.1) {
-                return;
+            char messageType = message.type();
+            String transactionId = message.transactionId();
+
+            // Replies go straight to the request that is waiting for them
+            if (isReplyType(messageType)) {
+                pendingRequests.complete(sender, transactionId, messageType, message.payload());
+                if (messageType != 'H') {
+                    return;
+                }
             }
 
-            String[] parts = message.trim().split("\\s+", 3);
-            if (parts.length < 2) {
+            routingTable.touch(sender);
+
+            // Relays are not answered by this node, so they skip the reply cache
+            if (messageType == 'V') {
+                relayMessage(message, sender, reply);
                 return;
             }
 
-            String transactionId = parts[0];
-            String messageType = parts[1];
-
-            // Ignore duplicate messages
-            if (processedMessages.contains(transactionId)) {
+            // A request we have already handled is answered with the reply it got the first time
+            byte[] request = new byte[message.limit() - message.start() - 2];
+            message.buffer().get(message.start() + 2, request);
+            ReplyCache.Entry earlier = replyCache.claim(sender, transactionId, request);
+            if (earlier != null) {
+                metrics.duplicateRequest();
+                byte[] earlierReply = earlier.reply;
+                if (earlierReply != null) {
+                    sendMessage(sender, ByteBuffer.wrap(earlierReply));
+                }
                 return;
             }
-            processedMessages.add(transactionId);
-
-            String payload = parts.length > 2 ? parts[2] : "";
 
             switch (messageType) {
-                case "G":
-                    sendResponse(senderAddress, senderPort, transactionId + " H " + encode(nodeIdentifier));
+                case 'G':
+                    sendReply(sender, transactionId, request, reply.begin(transactionId, 'H').string(nodeIdentifier));
                     break;
-                case "H":
-                    String nodeName = decode(payload);
-                    if (nodeName != null) {
-                        nodeDirectory.put(nodeName, new InetSocketAddress(senderAddress, senderPort));
+                case 'H':
+                    // An H relayed back to us comes from the relay's address, not the node's
+                    String name = message.string(0);
+                    String nameAtSender = routingTable.name(sender);
+                    if (nameAtSender == null || nameAtSender.equals(name)) {
+                        learnNode(name, sender);
                     }
                     break;
-                case "W":
-                    String[] keyValue = parseKeyValuePair(payload);
-                    if (keyValue != null && keyValue[0] != null && keyValue[1] != null) {
-                        dataStore.put(keyValue[0], keyValue[1]);
-                        if (keyValue[0].startsWith("N:")) {
-                            try {
-                                String[] addressParts = keyValue[1].split(":");
-                                if (addressParts.length == 2) {
-                                    nodeDirectory.put(keyValue[0], new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1])));
-                                }
-                            } catch (Exception e) {
-                                // Ignore malformed address
+                case 'W':
+                    String key = message.string(0);
+                    String storedValue = message.string(1);
+                    dataStore.put(key, storedValue);
+                    invalidateHotKey(key);
+                    if (message.stringStartsWith(0, "N:")) {
+                        try {
+                            String[] addressParts = storedValue.split(":");
+                            if (addressParts.length == 2) {
+                                learnNode(key, new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1])));
                             }
+                        } catch (Exception e) {
+                            // Ignore malformed address
                         }
-                        sendResponse(senderAddress, senderPort, transactionId + " X A");
                     }
+                    sendReply(sender, transactionId, request, reply.begin(transactionId, 'X').ascii('A'));
                     break;
-                case "R":
-                    String readKey = decode(payload);
-                    if (readKey != null) {
-                        String value = dataStore.getOrDefault(readKey, null);
-                        String response = value != null ? transactionId + " S Y " + encode(value) : transactionId + " S N ";
-                        sendResponse(senderAddress, senderPort, response);
-                    }
+                case 'C':
+                    // The compare, the swap and whether the key was there are all decided in
+                    // one step inside the store
+                    String swapKey = message.string(0);
+                    KeyValueStore.Swap swap = dataStore.compareAndSwap(swapKey, message.string(1), message.string(2));
+                    char status = swap == KeyValueStore.Swap.REPLACED ? 'R' : swap == KeyValueStore.Swap.ADDED ? 'A' : 'N';
+                    sendReply(sender, transactionId, request, reply.begin(transactionId, 'D').ascii(status));
+                    // This node decided, so it passes the value on to the other replicas. A refused
+                    // swap usually means the caller read a replica that missed an earlier W, so
+                    // the value is sent then too to catch it up
+                    passOn(swapKey);
                     break;
-                case "S":
-                    String[] responseParts = payload.split("\\s+", 2);
-                    if (responseParts.length > 1 && responseParts[0].equals("Y")) {
-                        lastReadValue = decode(responseParts[1]);
+                case 'R':
+                    String readKey = message.string(0);
+                    String value = dataStore.get(readKey);
+                    if (value == null) {
+                        value = hotKeyValue(readKey, true);
                     }
-                    break;
-                case "E":
-                    String existsKey = decode(payload);
-                    boolean keyExists = existsKey != null && dataStore.containsKey(existsKey);
-                    sendResponse(senderAddress, senderPort, transactionId + " F " + (keyExists ? "Y" : "N"));
-                    break;
-                case "F":
-                    if (payload.trim().equals("Y")) {
-                        lastExistsResult = true;
+                    reply.begin(transactionId, 'S');
+                    if (value != null) {
+                        reply.ascii("Y ").string(value);
+                    } else {
+                        reply.ascii("N ");
                     }
+                    sendReply(sender, transactionId, request, reply);
                     break;
-                case "N":
-                    String hash = payload.trim();
-                    List<String> nodeList = new ArrayList<>(nodeDirectory.keySet());
-                    nodeList.removeIf(name -> !name.startsWith("N:"));
-                    nodeList.sort((n1, n2) -> {
-                        try {
-                            return calculateDistance(hash, generateHash(n2)) - calculateDistance(hash, generateHash(n1));
-                        } catch (Exception e) {
-                            return 0;
-                        }
-                    });
-
-                    StringBuilder nearestResponse = new StringBuilder(transactionId + " O");
-                    int maxNodes = Math.min(3, nodeList.size());
-                    for (int i = 0; i < maxNodes; i++) {
-                        String name = nodeList.get(i);
-                        InetSocketAddress address = nodeDirectory.get(name);
-                        if (address != null) {
-                            String addressString = address.getAddress().getHostAddress() + ":" + address.getPort();
-                            nearestResponse.append(" ").append(encode(name)).append(encode(addressString));
-                        }
-                    }
-                    sendResponse(senderAddress, senderPort, nearestResponse.toString());
-                    break;
-                case "O":
-                    nearestNodesCache.put(transactionId, payload);
+                case 'E':
+                    String existsKey = message.string(0);
+                    boolean keyExists = dataStore.containsKey(existsKey) || hotKeyValue(existsKey, false) != null;
+                    sendReply(sender, transactionId, request, reply.begin(transactionId, 'F').ascii(keyExists ? 'Y' : 'N'));
                     break;
-                case "V":
-                    String[] relayParts = payload.split("\\s+", 2);
-                    if (relayParts.length == 2) {
-                        String nextNode = decode(relayParts[0]);
-                        String forwardedMessage = relayParts[1];
-                        if (nextNode != null) {
-                            if (nextNode.equals(nodeIdentifier)) {
-                                processNodeMessage(forwardedMessage, senderAddress, senderPort);
-                            } else if (nodeDirectory.containsKey(nextNode)) {
-                                InetSocketAddress nextAddress = nodeDirectory.get(nextNode);
-                                String relayedMessage = "V " + encode(nextNode) + forwardedMessage;
-                                sendResponse(nextAddress.getAddress(), nextAddress.getPort(), relayedMessage);
-                            }
-                        }
+                case 'N':
+                    HashKey hash = message.hashKey();
+                    if (hash == null) {
+                        break;
+                    }
+                    reply.begin(transactionId, 'O');
+                    for (RoutingTable.Entry entry : routingTable.closest(hash, CLOSEST_NODE_COUNT)) {
+                        InetSocketAddress address = entry.address;
+                        reply.string(entry.name).string(address.getAddress().getHostAddress() + ":" + address.getPort());
                     }
+                    sendReply(sender, transactionId, request, reply);
                     break;
-                case "I":
-                    // Heartbeat message, no action required
+                case 'I':
+                    // Heartbeat message, dispatchMessage has already noted the sender is alive
                     break;
                 default:
                     // Unknown message type, ignore
@@ -252,36 +384,103 @@ public class Node implements NodeInterface {
             if (enableDebug) {
                 System.err.println("Error processing message: " + e.getMessage());
             }
+        } finally {
+            reply.release();
         }
     }
 
-    //method sends a response message to the specified address and port
-    //applies relay wrapping if the relay stack is not empty
-    private void sendResponse(InetAddress address, int port, String message) {
+    //method sends a message held in a buffer to the specified address
+    private void sendMessage(InetSocketAddress address, ByteBuffer message) {
         try {
-            String finalMessage = message;
-            Deque<String> tempStack = new ArrayDeque<>(relayStack);
-            while (!tempStack.isEmpty()) {
-                finalMessage = "V " + encode(tempStack.removeLast()) + finalMessage;
-            }
-            byte[] data = finalMessage.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
-            udpSocket.send(packet);
             if (enableDebug) {
-                System.out.println("Sent: " + finalMessage);
+                byte[] data = new byte[message.remaining()];
+                message.duplicate().get(data);
+                System.out.println("Sent: " + new String(data, java.nio.charset.StandardCharsets.UTF_8));
+            }
+            if (message.remaining() >= 4) {
+                metrics.sent((char) message.get(message.position() + 3));
             }
+            transport.send(message, address);
         } catch (IOException e) {
             if (enableDebug) {
                 System.err.println("Failed to send response: " + e.getMessage());
             }
         }
     }
-//encodes a string for crn message to format by prefixing it with the required amount of spaces
-    private String encode(String value) {
-        if (value == null) return "";
-        int spaceCount = value.length() - value.replace(" ", "").length();
-        return spaceCount + " " + value + " ";
+
+    //sends the reply to a request and keeps it so a retransmission of the request gets it again
+    //replies go straight back to the sender, they are never wrapped for the relay stack
+    private void sendReply(InetSocketAddress sender, String transactionId, byte[] request, CrnWriter reply) {
+        ReplyCache.Entry entry = replyCache.get(sender, transactionId, request);
+        if (entry != null) {
+            entry.reply = reply.toBytes();
+        }
+        sendMessage(sender, reply.flip());
+    }
+
+    //passes the message inside a V message on to the node it names, or handles it here
+    //if that is this node. a request is sent on with a transaction id of our own, and
+    //the route back to the sender is kept so forwardRelayedReply can return the reply
+    private void relayMessage(CrnMessage message, InetSocketAddress sender, CrnWriter writer) {
+        CrnMessage inner = message.inner();
+        if (inner == null) {
+            return;
+        }
+        String nextNode = message.string(0);
+        if (nextNode.equals(nodeIdentifier)) {
+            processNodeMessage(inner, sender);
+            return;
+        }
+        InetSocketAddress nextAddress = routingTable.address(nextNode);
+        if (nextAddress == null) {
+            return;
+        }
+        writer.reset().bytes(message.buffer(), message.innerStart(), message.limit());
+        if (isRequestType(inner.type())) {
+            RelayRoutes.Route route = relayRoutes.route(sender, message.transactionId(), nextAddress);
+            writer.transactionId(0, route.forwardedTransactionId);
+        }
+        sendMessage(nextAddress, writer.flip());
+    }
+
+    //sends a reply to a request this node relayed back to whoever sent the V message,
+    //with the transaction id of their V message. only the id and type are looked at,
+    //the rest of the datagram is passed on as it is. returns false if it is not one
+    private boolean forwardRelayedReply(ByteBuffer datagram, InetSocketAddress sender) {
+        int start = datagram.position();
+        if (relayRoutes.isEmpty() || datagram.remaining() < 4 || !isReplyType((char) datagram.get(start + 3))) {
+            return false;
+        }
+        RelayRoutes.Route route = relayRoutes.replyRoute(sender, CrnMessage.transactionId(datagram, start));
+        if (route == null) {
+            return false;
+        }
+        datagram.put(start, (byte) route.requesterTransactionId.charAt(0));
+        datagram.put(start + 1, (byte) route.requesterTransactionId.charAt(1));
+        sendMessage(route.requester, datagram);
+        return true;
+    }
+
+    //the encoded V layers for every relay after the first, which is where messages are
+    //sent. transaction ids are left blank and filled in for each request
+    private static final class RelayPath {
+        final String firstHop;
+        final byte[] prefix;
+        final int[] transactionIdOffsets;
+
+        RelayPath(List<String> relays) {
+            CrnWriter writer = CrnWriter.acquire().reset();
+            transactionIdOffsets = new int[relays.size() - 1];
+            for (int i = 1; i < relays.size(); i++) {
+                transactionIdOffsets[i - 1] = writer.position();
+                writer.header("  ", 'V').string(relays.get(i));
+            }
+            firstHop = relays.get(0);
+            prefix = writer.toBytes();
+            writer.release();
+        }
     }
+
     //decodes a stringfrom the crn message format by removing the space count prefix.
 
 
@@ -292,202 +491,1225 @@ public class Node implements NodeInterface {
         return encoded.substring(firstSpace + 1, encoded.length() - 1);
     }
 
-    //parses a key value pair from a crn message payload
-    private String[] parseKeyValuePair(String input) {
-        String[] parts = input.trim().split("\\s+", 4);
-        if (parts.length == 4) {
-            return new String[]{parts[1], parts[3]};
+    //decodes every encoded string in a reply payload, using the space counts so that
+    //the strings may contain spaces themselves
+    private List<String> decodeStrings(String input) {
+        List<String> strings = new ArrayList<>();
+        int position = 0;
+        while (position < input.length()) {
+            int end = encodedStringEnd(input, position);
+            if (end < 0) {
+                break;
+            }
+            strings.add(decode(input.substring(position, end)));
+            position = end;
+        }
+        return strings;
+    }
+
+    //the value in an S reply payload, or null if it says the key is not there
+    private String readValue(String payload) {
+        if (!payload.startsWith("Y ")) {
+            return null;
+        }
+        return decode(payload.substring(2));
+    }
+
+    //finds the end of the encoded string starting at from: the count, a space, the
+    //text holding that many spaces and the closing space. returns -1 if it is malformed
+    private int encodedStringEnd(String input, int from) {
+        int countEnd = input.indexOf(' ', from);
+        if (countEnd <= from) {
+            return -1;
+        }
+        int spaces;
+        try {
+            spaces = Integer.parseInt(input.substring(from, countEnd));
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return null;
+        int position = countEnd;
+        for (int i = 0; i <= spaces; i++) {
+            position = input.indexOf(' ', position + 1);
+            if (position < 0) {
+                return -1;
+            }
+        }
+        return position + 1;
     }
 
+    //a node is active if it has been heard from recently. otherwise it is sent a G and
+    //is active if it answers within PROBE_TIMEOUT_MS, unless it was found dead more
+    //recently than the prober would check a dead node again
     @Override
-    public boolean isActive(String nodeName) {
-        return nodeDirectory.containsKey(nodeName);
+    public boolean isActive(String nodeName) throws Exception {
+        return await(isActiveAsync(nodeName));
     }
 
     @Override
     public void pushRelay(String nodeName) {
-        relayStack.addLast(nodeName);
+        synchronized (relayStack) {
+            relayStack.addLast(nodeName);
+            relayPath = new RelayPath(new ArrayList<>(relayStack));
+        }
     }
 
     @Override
     public void popRelay() {
-        if (!relayStack.isEmpty()) {
-            relayStack.removeLast();
+        synchronized (relayStack) {
+            relayStack.pollLast();
+            relayPath = relayStack.isEmpty() ? null : new RelayPath(new ArrayList<>(relayStack));
         }
     }
 
     @Override
     public boolean exists(String key) throws Exception {
-        return performLookupOnNode(key, true) != null;
+        return await(existsAsync(key));
     }
 
     //reads the value associated with a key from the distributed key-value store
 
     @Override
     public String read(String key) throws Exception {
+        return await(readAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isActiveAsync(String nodeName) {
+        if (nodeName.equals(nodeIdentifier)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        InetSocketAddress address = routingTable.address(nodeName);
+        if (address == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        PeerStats stats = peerStats.computeIfAbsent(address, a -> new PeerStats());
+        long now = System.currentTimeMillis();
+        if (now - stats.getLastHeardMillis() < RECENTLY_HEARD_MS) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (stats.liveness() == PeerStats.Liveness.DEAD && now - stats.getLastFailedMillis() < LivenessProber.DEAD_PROBE_MILLIS) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return sendRequest(address, 'G', body -> { })
+                .handle((payload, error) -> error == null)
+                .completeOnTimeout(false, PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    //how a node has been answering our requests, ALIVE if we have not asked it anything
+    private PeerStats.Liveness liveness(InetSocketAddress address) {
+        PeerStats stats = peerStats.get(address);
+        return stats == null ? PeerStats.Liveness.ALIVE : stats.liveness();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String key) {
+        return performLookupOnNode(key, true).thenApply(value -> value != null);
+    }
+
+    @Override
+    public CompletableFuture<String> readAsync(String key) {
         return performLookupOnNode(key, false);
     }
 
-    //performs a lookup for a key in the distributed system
+    //performs a lookup for a key in the distributed system. nothing here waits, each
+    //step is started by the reply or timeout that finishes the one before it
 
-    private String performLookupOnNode(String key, boolean isExistsCheck) throws Exception {
+    private CompletableFuture<String> performLookupOnNode(String key, boolean isExistsCheck) {
         // Check local store first
-        if (dataStore.containsKey(key)) {
-            return dataStore.get(key);
+        String localValue = dataStore.get(key);
+        if (localValue != null) {
+            return CompletableFuture.completedFuture(localValue);
         }
 
-        String keyHash = generateHash(key);
-        Set<String> visitedNodes = new HashSet<>();
-        Deque<String> nodesToVisit = new ArrayDeque<>(nodeDirectory.keySet());
+        // Then what was found by a recent lookup
+        ReadCache cache = readCache;
+        long stamp = 0;
+        if (cache != null) {
+            if (isExistsCheck) {
+                Boolean cached = cache.exists(key);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached ? "YES" : null);
+                }
+            } else {
+                String cached = cache.value(key);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+            stamp = cache.stamp(key);
+        }
 
-        // Bootstrap with a known node if directory is empty
-        if (nodeDirectory.isEmpty()) {
-            String bootstrapNode = "N:azure";
-            nodeDirectory.put(bootstrapNode, new InetSocketAddress("10.200.51.19", 20114));
-            nodesToVisit.add(bootstrapNode);
+        // Ask the nodes a recent lookup found for the key before searching for them again
+        HashKey keyHash = hashOf(key);
+        char valueRequest = isExistsCheck ? 'E' : 'R';
+        LocationCache locations = locationCache;
+        LocationCache.Entry location = locations == null ? null : locations.get(keyHash, false);
+        CompletableFuture<LookupResult> direct = location == null
+                ? CompletableFuture.completedFuture(null)
+                : askKnownLocation(location, key, valueRequest);
+        long lookupStamp = stamp;
+        return direct.thenCompose(result -> result != null
+                        ? CompletableFuture.completedFuture(result.value)
+                        : fullLookup(key, keyHash, valueRequest, location))
+                .thenApply(value -> {
+                    // Values from reads are kept, and exists only tells us when a key is missing
+                    if (cache != null && (value != null ? !isExistsCheck : isExistsCheck)) {
+                        cache.put(key, value, lookupStamp);
+                    }
+                    return value;
+                });
+    }
+
+    //an iterative lookup for the key, after the nodes in location (if any) failed to answer
+    private CompletableFuture<String> fullLookup(String key, HashKey keyHash, char valueRequest, LocationCache.Entry location) {
+        LocationCache locations = locationCache;
+        if (location != null && locations != null) {
+            locations.invalidate(keyHash);
         }
 
-        while (!nodesToVisit.isEmpty()) {
-            String currentNode = nodesToVisit.removeFirst();
-            if (visitedNodes.contains(currentNode) || !nodeDirectory.containsKey(currentNode)) {
-                continue;
-            }
-            visitedNodes.add(currentNode);
+        // Bootstrap with a known node if the routing table is empty
+        if (routingTable.size() == 0) {
+            learnNode("N:azure", new InetSocketAddress("10.200.51.19", 20114));
+        }
 
-            InetSocketAddress nodeAddress = nodeDirectory.get(currentNode);
-            String transactionId = generateTransactionId();
+        return iterativeLookup(key, keyHash, valueRequest).thenApply(result -> result.value);
+    }
 
-            // Send the appropriate request
-            if (isExistsCheck) {
-                lastExistsResult = false;
-                sendResponse(nodeAddress.getAddress(), nodeAddress.getPort(), transactionId + " E " + encode(key));
-            } else {
-                lastReadValue = null;
-                sendResponse(nodeAddress.getAddress(), nodeAddress.getPort(), transactionId + " R " + encode(key));
-            }
-
-            // Wait for a response
-            long startTime = System.currentTimeMillis();
-            while (System.currentTimeMillis() - startTime < 1000) {
-                handleIncomingMessages(100);
-                if (isExistsCheck && lastExistsResult) {
-                    return "YES";
-                } else if (!isExistsCheck && lastReadValue != null) {
-                    return lastReadValue;
+    //sends the value request to every node in a location cache entry at once. completes
+    //with the value if one has it, or no value if they all answered without it and the
+    //entry is complete, since then they are the nodes that should have it. completes
+    //with null when that cannot be known and a full lookup is needed
+    private CompletableFuture<LookupResult> askKnownLocation(LocationCache.Entry location, String key, char valueRequest) {
+        CompletableFuture<LookupResult> result = new CompletableFuture<>();
+        int[] counts = {location.nodes.size(), 0};    // outstanding, unanswered
+        for (RoutingTable.Entry node : location.nodes) {
+            sendRequest(node.address, valueRequest, body -> body.string(key)).whenComplete((payload, error) -> {
+                synchronized (counts) {
+                    counts[0]--;
+                    if (error != null) {
+                        counts[1]++;
+                    } else if (payload.startsWith("Y")) {
+                        result.complete(new LookupResult(valueRequest == 'E' ? "YES" : readValue(payload), location.nodes));
+                    }
+                    if (counts[0] == 0) {
+                        result.complete(counts[1] == 0 && location.complete ? new LookupResult(null, location.nodes) : null);
+                    }
                 }
+            });
+        }
+        return result;
+    }
+
+    //how many keys to remember the closest nodes of and for how long, 0 turns it off
+    public void setLocationCache(int capacity, long ttlMillis) {
+        locationCache = ttlMillis > 0 ? new LocationCache(capacity, ttlMillis) : null;
+    }
+
+    //the location cache and its hit and miss counts, or null if it is turned off
+    public LocationCache getLocationCache() {
+        return locationCache;
+    }
+
+    //caches the results of remote reads, and of exists checks that find nothing, for
+    //ttlMillis. a cached value can be that much out of date unless this node wrote it
+    public void enableReadCache(int capacity, long ttlMillis) {
+        readCache = new ReadCache(capacity, ttlMillis);
+    }
+
+    //the read cache and its hit, miss and eviction counts, or null if it is not enabled
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    //spots keys this node is often asked for by lookups passing through without holding
+    //them, and keeps copies of those asked for at least threshold times a second for
+    //ttlMillis, so the lookups stop here. a copy can be that much out of date
+    public void enableHotKeyCache(int capacity, long threshold, long ttlMillis) {
+        hotKeys = new HotKeyCache(capacity, threshold, HotKeyCache.DEFAULT_WINDOW_MS, ttlMillis);
+    }
+
+    //the hot key cache and its hit and fetch counts, or null if it is not enabled
+    public HotKeyCache getHotKeyCache() {
+        return hotKeys;
+    }
+
+    //the copy of a key this node does not hold, or null. with countMiss a request that
+    //cannot be answered counts towards the key being hot, and starts fetching it once it is
+    private String hotKeyValue(String key, boolean countMiss) {
+        HotKeyCache hot = hotKeys;
+        if (hot == null) {
+            return null;
+        }
+        String value = hot.value(key);
+        if (value == null && countMiss && hot.recordMiss(key)) {
+            fetchHotKey(hot, key);
+        }
+        return value;
+    }
+
+    //reads the key from its closest nodes, found by a lookup that does not stop at
+    //copies on the way, so a copy is never made from another copy
+    private void fetchHotKey(HotKeyCache hot, String key) {
+        findReplicas(key, false)
+                .thenCompose(replicas -> readFromOwner(replicas.nodes, 0, key))
+                .whenComplete((value, error) -> hot.fetched(key, error == null && dataStore.get(key) == null ? value : null));
+    }
+
+    //asks the closest nodes one at a time until one has the key
+    private CompletableFuture<String> readFromOwner(List<RoutingTable.Entry> owners, int index, String key) {
+        if (index >= owners.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return sendRequest(owners.get(index).address, 'R', body -> body.string(key))
+                .handle((payload, error) -> error == null && payload.startsWith("Y") ? readValue(payload) : null)
+                .thenCompose(value -> value != null ? CompletableFuture.completedFuture(value) : readFromOwner(owners, index + 1, key));
+    }
+
+    private void invalidateHotKey(String key) {
+        HotKeyCache hot = hotKeys;
+        if (hot != null) {
+            hot.invalidate(key);
+        }
+    }
+
+    private void invalidateCachedRead(String key) {
+        ReadCache cache = readCache;
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    //the hash of a key. hashing cannot really fail, but if it did the future it was
+    //being worked out for fails with it
+    private static HashKey hashOf(String key) {
+        try {
+            return HashKey.of(key);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    //waits for one of the async operations, throwing the exception it failed with
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
+            throw e;
+        }
+    }
 
-            // Request nearest nodes
-            String nearestTxId = generateTransactionId();
-            sendResponse(nodeAddress.getAddress(), nodeAddress.getPort(), nearestTxId + " N " + keyHash);
+    //the outcome of an iterative lookup: the value if one was found and the closest
+    //nodes to the key that answered, closest first
+    private static final class LookupResult {
+        final String value;
+        final List<RoutingTable.Entry> closest;
 
-            // Wait for nearest nodes response
-            startTime = System.currentTimeMillis();
-            while (!nearestNodesCache.containsKey(nearestTxId) && (System.currentTimeMillis() - startTime) < 1000) {
-                handleIncomingMessages(100);
+        LookupResult(String value, List<RoutingTable.Entry> closest) {
+            this.value = value;
+            this.closest = closest;
+        }
+    }
+
+    //valueRequest is R or E to look for the key on the way, or 0 to only find the closest nodes
+    private CompletableFuture<LookupResult> iterativeLookup(String key, HashKey keyHash, char valueRequest) {
+        return new IterativeLookup(key, keyHash, valueRequest).start();
+    }
+
+    //keeps up to lookupParallelism nodes in flight at once, always asking the closest
+    //unvisited candidates first, and stops once a value arrives or the closest nodes
+    //we know about have all been asked. nodes found dead are counted as failed without
+    //being asked, and suspect ones wait until no responsive candidate is left to ask.
+    //there is no thread behind it, every reply or timeout moves it on under its own
+    //lock and sends whatever should go next
+    private final class IterativeLookup {
+        private final String key;
+        private final HashKey keyHash;
+        private final char valueRequest;
+        private final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+
+        // every node seen so far, and the candidates ordered closest to the key first
+        private final Map<String, RoutingTable.Entry> seen = new HashMap<>();
+        private final List<String> candidates = new ArrayList<>();
+        private final Set<String> visitedNodes = new HashSet<>();
+        private final Set<String> failedNodes = new HashSet<>();
+        // nodes with a request still unanswered, and how many of their requests that is
+        private final Map<String, Integer> inFlight = new HashMap<>();
+        // how many replies deep each candidate was found, the routing table's being 1
+        private final Map<String, Integer> hops = new HashMap<>();
+        private int maxHops = 0;
+        private final long startNanos = System.nanoTime();
+
+        IterativeLookup(String key, HashKey keyHash, char valueRequest) {
+            this.key = key;
+            this.keyHash = keyHash;
+            this.valueRequest = valueRequest;
+            for (RoutingTable.Entry entry : routingTable.closest(keyHash, ROUTING_BUCKET_SIZE)) {
+                addLookupCandidate(entry, keyHash, seen, candidates);
+            }
+            for (String name : candidates) {
+                hops.put(name, 1);
             }
+        }
 
-            String nearestResponse = nearestNodesCache.get(nearestTxId);
-            if (nearestResponse == null) {
-                continue;
+        synchronized CompletableFuture<LookupResult> start() {
+            advance();
+            return result;
+        }
+
+        //fills the window with the closest nodes we have not asked yet, and finishes
+        //once every one of the k closest live candidates has been asked
+        private void advance() {
+            // Responsive candidates on the first pass, suspect ones only on the second
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < candidates.size() && inFlight.size() < lookupParallelism; i++) {
+                    String currentNode = candidates.get(i);
+                    if (visitedNodes.contains(currentNode)) {
+                        continue;
+                    }
+                    InetSocketAddress nodeAddress = seen.get(currentNode).address;
+                    PeerStats.Liveness state = liveness(nodeAddress);
+                    if (state == PeerStats.Liveness.DEAD) {
+                        visitedNodes.add(currentNode);
+                        failedNodes.add(currentNode);
+                        continue;
+                    }
+                    if (pass == 0 && state == PeerStats.Liveness.SUSPECT) {
+                        continue;
+                    }
+                    visitedNodes.add(currentNode);
+                    ask(currentNode, nodeAddress);
+                }
+            }
+
+            if (inFlight.isEmpty()) {
+                finish(converged(keyHash, answeredNodes(candidates, seen, visitedNodes, failedNodes)));
+            }
+        }
+
+        private void ask(String currentNode, InetSocketAddress nodeAddress) {
+            maxHops = Math.max(maxHops, hops.get(currentNode));
+            // In flight first, since a reply that is already in runs onReply right here
+            inFlight.put(currentNode, valueRequest != 0 ? 2 : 1);
+            // Send the value request and the nearest nodes request together
+            if (valueRequest != 0) {
+                sendRequest(nodeAddress, valueRequest, body -> body.string(key))
+                        .whenComplete((payload, error) -> onReply(currentNode, valueRequest, payload));
             }
+            sendRequest(nodeAddress, 'N', body -> body.ascii(keyHash.toHex()))
+                    .whenComplete((payload, error) -> onReply(currentNode, 'N', payload));
+        }
 
-            // Parse nearest nodes and add to queue
-            String[] responseParts = nearestResponse.trim().split("\\s+");
-            for (int i = 0; i + 3 < responseParts.length; i += 4) {
-                String nodeName = responseParts[i + 1];
-                String addressString = responseParts[i + 3];
-                if (nodeName.startsWith("N:") && addressString.contains(":")) {
-                    String[] addressParts = addressString.split(":");
-                    InetSocketAddress address = new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1]));
-                    nodeDirectory.put(nodeName, address);
-                    if (!visitedNodes.contains(nodeName)) {
-                        nodesToVisit.addLast(nodeName);
+        //a reply, or a timeout when payload is null. each node is done once both its
+        //value request and its nearest nodes request have been answered or timed out,
+        //so the lookup cannot call a key missing while the closest node's answer to the
+        //value request is still on its way. a node that did not answer both has failed
+        synchronized void onReply(String nodeName, char requestType, String payload) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                if (inFlight.merge(nodeName, -1, Integer::sum) == 0) {
+                    inFlight.remove(nodeName);
+                }
+                if (payload == null) {
+                    failedNodes.add(nodeName);
+                } else if (requestType == 'N') {
+                    parseNearestNodes(payload, keyHash, seen, candidates);
+                    int depth = hops.get(nodeName) + 1;
+                    for (String name : candidates) {
+                        hops.putIfAbsent(name, depth);
                     }
+                } else if (payload.startsWith("Y")) {
+                    found(nodeName, valueRequest == 'E' ? "YES" : readValue(payload));
+                    return;
                 }
+
+                if (inFlight.isEmpty() && closestAllVisited(candidates, visitedNodes, failedNodes)) {
+                    finish(converged(keyHash, answeredNodes(candidates, seen, visitedNodes, failedNodes)));
+                } else {
+                    advance();
+                }
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void found(String holderName, String value) {
+            List<RoutingTable.Entry> answered = answeredNodes(candidates, seen, visitedNodes, failedNodes);
+            // The node with the value goes first, the rest were only asked on the way
+            RoutingTable.Entry holder = seen.get(holderName);
+            answered.remove(holder);
+            answered.add(0, holder);
+            if (answered.size() > CLOSEST_NODE_COUNT) {
+                answered.remove(CLOSEST_NODE_COUNT);
+            }
+            LocationCache locations = locationCache;
+            if (locations != null) {
+                locations.put(keyHash, answered, false);
+            }
+            finish(new LookupResult(value, answered));
+        }
+
+        private void finish(LookupResult lookupResult) {
+            if (result.complete(lookupResult)) {
+                metrics.lookup(System.nanoTime() - startNanos, maxHops);
             }
         }
-        return null;
     }
 
-    //in charge of writing a key-value pair to the local key value store
+    //the result of a lookup that has asked all of the closest nodes, which are remembered
+    private LookupResult converged(HashKey keyHash, List<RoutingTable.Entry> closest) {
+        LocationCache locations = locationCache;
+        if (locations != null) {
+            locations.put(keyHash, closest, true);
+        }
+        return new LookupResult(null, closest);
+    }
 
-    @Override
-    public boolean write(String key, String value) {
-        dataStore.put(key, value);
+    //the k closest candidates that were asked and answered
+    private List<RoutingTable.Entry> answeredNodes(List<String> candidates, Map<String, RoutingTable.Entry> seen,
+                                                   Set<String> visitedNodes, Set<String> failedNodes) {
+        List<RoutingTable.Entry> answered = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && answered.size() < CLOSEST_NODE_COUNT; i++) {
+            String name = candidates.get(i);
+            if (visitedNodes.contains(name) && !failedNodes.contains(name)) {
+                answered.add(seen.get(name));
+            }
+        }
+        return answered;
+    }
+
+    //sends a request to a node and returns the future its reply payload completes
+    //it is retransmitted with the same transaction id on the node's adaptive timeout
+    private CompletableFuture<String> sendRequest(InetSocketAddress address, char requestType, Consumer<CrnWriter> body) {
+        return sendRequest(address, requestType, body, 0);
+    }
+
+    //the same, retransmitting for retransmitMillis rather than a fixed number of times
+    //when it is more than 0
+    private CompletableFuture<String> sendRequest(InetSocketAddress address, char requestType, Consumer<CrnWriter> body, long retransmitMillis) {
+        // With relays the request goes to the first of them wrapped in a V for each of the
+        // others and one naming the node it is for, and the reply comes back from there
+        RelayPath relays = relayPath;
+        String targetName = relays == null ? null : routingTable.name(address);
+        InetSocketAddress firstHop = targetName == null ? null : routingTable.address(relays.firstHop);
+        InetSocketAddress peer = firstHop != null ? firstHop : address;
+
+        prunePeerStats();
+        PeerStats stats = peerStats.computeIfAbsent(address, a -> new PeerStats());
+        PendingRequests.Request request = pendingRequests.register(peer, requestType, stats);
+        String transactionId = request.transactionId;
+        CrnWriter writer = CrnWriter.acquire().reset();
+        if (firstHop != null) {
+            writer.bytes(relays.prefix);
+            for (int offset : relays.transactionIdOffsets) {
+                writer.transactionId(offset, transactionId);
+            }
+            writer.header(transactionId, 'V').string(targetName);
+        }
+        body.accept(writer.header(transactionId, requestType));
+        byte[] message = writer.toBytes();
+        writer.release();
+        Runnable send = () -> sendMessage(peer, ByteBuffer.wrap(message));
+        if (retransmitMillis > 0) {
+            pendingRequests.transmitFor(request, send, retransmitMillis);
+        } else {
+            pendingRequests.transmit(request, send);
+        }
+        return request.reply;
+    }
+
+    //forgets the stats of peers that are not in the routing table, have no request
+    //outstanding and have been quiet for PEER_IDLE_MS, at most once every PEER_IDLE_MS.
+    //every node an O reply names gets stats once it is asked anything, and without
+    //this they would be kept for as long as the node runs, long after they were evicted
+    private void prunePeerStats() {
+        long now = System.currentTimeMillis();
+        if (now < nextPeerPruneAt) {
+            return;
+        }
+        nextPeerPruneAt = now + PEER_IDLE_MS;
+        RoutingTable table = routingTable;
+        peerStats.entrySet().removeIf(peer -> table.name(peer.getKey()) == null && peer.getValue().idleSince(now - PEER_IDLE_MS));
+    }
+
+    //the types a node answers, V counts since the node it names answers it
+    static boolean isRequestType(char messageType) {
+        switch (messageType) {
+            case 'G':
+            case 'N':
+            case 'E':
+            case 'R':
+            case 'W':
+            case 'C':
+            case 'V':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //replies are answered by completing the request waiting on them
+    static boolean isReplyType(char messageType) {
+        switch (messageType) {
+            case 'H':
+            case 'S':
+            case 'F':
+            case 'O':
+            case 'X':
+            case 'D':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //adds a node to the lookup candidates keeping them ordered closest to the key first
+    private void addLookupCandidate(RoutingTable.Entry entry, HashKey keyHash, Map<String, RoutingTable.Entry> seen, List<String> candidates) {
+        if (entry.name.equals(nodeIdentifier) || seen.putIfAbsent(entry.name, entry) != null) {
+            return;
+        }
+        int low = 0;
+        int high = candidates.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keyHash.compareDistance(seen.get(candidates.get(middle)).hash, entry.hash) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        candidates.add(low, entry.name);
+    }
+
+    //parses the payload of an O reply and adds the nodes in it to the lookup candidates
+    private void parseNearestNodes(String nearestResponse, HashKey keyHash, Map<String, RoutingTable.Entry> seen, List<String> candidates) {
+        List<String> strings = decodeStrings(nearestResponse);
+        for (int i = 0; i + 1 < strings.size(); i += 2) {
+            String nodeName = strings.get(i);
+            String addressString = strings.get(i + 1);
+            if (nodeName != null && addressString != null && nodeName.startsWith("N:") && addressString.contains(":")) {
+                String[] addressParts = addressString.split(":");
+                InetSocketAddress address = new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1]));
+                RoutingTable.Entry entry = learnNode(nodeName, address);
+                if (entry != null) {
+                    addLookupCandidate(entry, keyHash, seen, candidates);
+                }
+            }
+        }
+    }
+
+    //true when the k closest candidates that have not failed have all been asked
+    private boolean closestAllVisited(List<String> candidates, Set<String> visitedNodes, Set<String> failedNodes) {
+        int checked = 0;
+        for (String name : candidates) {
+            if (failedNodes.contains(name)) {
+                continue;
+            }
+            if (!visitedNodes.contains(name)) {
+                return false;
+            }
+            if (++checked >= CLOSEST_NODE_COUNT) {
+                break;
+            }
+        }
         return true;
     }
 
+    //sets how many nodes a lookup may have requests outstanding with at once
+    public void setLookupParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Lookup parallelism must be at least 1.");
+        }
+        this.lookupParallelism = parallelism;
+    }
+
+    //in charge of writing a key-value pair to the nodes closest to the key
+    //W is sent to all of them at once and the write succeeds as soon as writeQuorum
+    //of them have stored it. this node stores it too if it is one of the closest
+
+    @Override
+    public boolean write(String key, String value) throws Exception {
+        return await(writeAsync(key, value));
+    }
+
     @Override
-    public boolean CAS(String key, String oldValue, String newValue) {
-        String currentValue = dataStore.get(key);
-        if (currentValue == null) {
-            dataStore.put(key, newValue);
-            return true;
+    public CompletableFuture<Boolean> writeAsync(String key, String value) {
+        // Dropped again afterwards in case a read fetched the old value meanwhile
+        invalidateCachedRead(key);
+        return findReplicas(key, true).thenCompose(replicas -> {
+            int acknowledged = 0;
+            if (replicas.includesSelf) {
+                dataStore.put(key, value);
+                acknowledged++;
+            }
+            return writeToReplicas(replicas, key, value, acknowledged);
+        }).whenComplete((stored, error) -> invalidateCachedRead(key));
+    }
+
+    //compare and swap on the key. the closest node to the key compares and swaps in one
+    //step, either this node's own store or a C request answered by a D, and then sends
+    //the new value on to the other closest nodes
+
+    @Override
+    public boolean CAS(String key, String oldValue, String newValue) throws Exception {
+        return await(casAsync(key, oldValue, newValue));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> casAsync(String key, String oldValue, String newValue) {
+        invalidateCachedRead(key);
+        return findReplicas(key, true).thenCompose(replicas -> swapAtClosest(replicas, key, oldValue, newValue).thenApply(swapped -> {
+            if (swapped == null && replicas.fromCache) {
+                // The cached closest node never answered, so the next swap looks for it again
+                LocationCache locations = locationCache;
+                if (locations != null) {
+                    locations.invalidate(hashOf(key));
+                }
+            }
+            return Boolean.TRUE.equals(swapped);
+        })).whenComplete((swapped, error) -> invalidateCachedRead(key));
+    }
+
+    //reads many keys at once. keys whose closest nodes are in the location cache are
+    //grouped by node, and each node is sent the R requests for all the keys it is a
+    //replica of back to back without waiting on a reply. the first replica to have a
+    //key answers for it, and a key none of them have is read again from scratch. CRN
+    //has no request that finds the nodes of more than one key, so every other key gets
+    //a lookup of its own that reads the value on the way, all running alongside the
+    //batch and filling the location cache for the next one. every key gets a result,
+    //in the order the keys were given
+    public Map<String, KeyResult> readAll(Collection<String> keys) {
+        Map<String, CompletableFuture<KeyResult>> results = new LinkedHashMap<>();
+        Map<InetSocketAddress, List<String>> byNode = new LinkedHashMap<>();
+        Map<String, ReadTally> tallies = new HashMap<>();
+        ReadCache cache = readCache;
+        for (String key : keys) {
+            if (results.containsKey(key)) {
+                continue;
+            }
+            String known = dataStore.get(key);
+            if (known == null && cache != null) {
+                known = cache.value(key);
+            }
+            Replicas replicas = known == null ? cachedReplicas(key) : null;
+            if (known != null) {
+                results.put(key, CompletableFuture.completedFuture(KeyResult.found(key, known)));
+            } else if (replicas == null || replicas.nodes.isEmpty()) {
+                results.put(key, readAsync(key).handle((value, error) -> readResult(key, value, error)));
+            } else {
+                ReadTally tally = new ReadTally(replicas.nodes.size());
+                tallies.put(key, tally);
+                for (RoutingTable.Entry node : replicas.nodes) {
+                    byNode.computeIfAbsent(node.address, address -> new ArrayList<>()).add(key);
+                }
+                long stamp = cache == null ? 0 : cache.stamp(key);
+                results.put(key, tally.result.thenCompose(value -> {
+                    if (value == null) {
+                        return readAsync(key);
+                    }
+                    if (cache != null) {
+                        cache.put(key, value, stamp);
+                    }
+                    return CompletableFuture.completedFuture(value);
+                }).handle((value, error) -> readResult(key, value, error)));
+            }
+        }
+        for (Map.Entry<InetSocketAddress, List<String>> group : byNode.entrySet()) {
+            for (String key : group.getValue()) {
+                ReadTally tally = tallies.get(key);
+                sendRequest(group.getKey(), 'R', body -> body.string(key))
+                        .whenComplete((payload, error) -> tally.answered(error == null && payload.startsWith("Y") ? readValue(payload) : null));
+            }
+        }
+        return collect(results);
+    }
+
+    private static KeyResult readResult(String key, String value, Throwable error) {
+        return error != null ? KeyResult.failed(key) : value == null ? KeyResult.notFound(key) : KeyResult.found(key, value);
+    }
+
+    //writes many keys at once, the same way readAll reads them. keys with cached
+    //replicas are grouped by node and each replica is sent the W requests for all of
+    //its keys back to back, and every other key is looked up and written on its own.
+    //a key is stored once writeQuorum of its replicas have it, and one whose cached
+    //replicas fell short is written again to the replicas a full lookup finds
+    public Map<String, KeyResult> writeAll(Map<String, String> values) {
+        Map<String, CompletableFuture<KeyResult>> results = new LinkedHashMap<>();
+        Map<InetSocketAddress, List<String>> byNode = new LinkedHashMap<>();
+        Map<String, WriteTally> tallies = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            Replicas replicas = cachedReplicas(key);
+            if (replicas == null) {
+                results.put(key, writeAsync(key, value).handle((stored, error) ->
+                        error == null && stored ? KeyResult.stored(key) : KeyResult.failed(key)));
+                continue;
+            }
+            invalidateCachedRead(key);
+            int acknowledged = 0;
+            if (replicas.includesSelf) {
+                dataStore.put(key, value);
+                acknowledged++;
+            }
+            WriteTally tally = new WriteTally(Math.min(writeQuorum, replicas.size()), acknowledged, replicas.nodes.size());
+            tallies.put(key, tally);
+            for (RoutingTable.Entry node : replicas.nodes) {
+                byNode.computeIfAbsent(node.address, address -> new ArrayList<>()).add(key);
+            }
+            results.put(key, tally.result
+                    .thenCompose(stored -> stored ? CompletableFuture.completedFuture(true) : writeAfterLookup(key, value))
+                    .handle((stored, error) -> error == null && stored ? KeyResult.stored(key) : KeyResult.failed(key))
+                    .whenComplete((result, error) -> invalidateCachedRead(key)));
         }
-        if (currentValue.equals(oldValue)) {
-            dataStore.put(key, newValue);
-            return true;
+        for (Map.Entry<InetSocketAddress, List<String>> group : byNode.entrySet()) {
+            for (String key : group.getValue()) {
+                WriteTally tally = tallies.get(key);
+                sendRequest(group.getKey(), 'W', body -> body.string(key).string(values.get(key)))
+                        .whenComplete((payload, error) -> tally.answered(error == null && stored(payload)));
+            }
         }
-        return false;
+        return collect(results);
     }
 
-    //in charge of generating a sha-256 hash out of the input
-    private String generateHash(String input) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hashBytes = digest.digest(input.getBytes("UTF-8"));
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : hashBytes) {
-            hexString.append(String.format("%02x", b));
+    //waits for every key's result, which never fails since each is already handled
+    private static Map<String, KeyResult> collect(Map<String, CompletableFuture<KeyResult>> futures) {
+        Map<String, KeyResult> results = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<KeyResult>> entry : futures.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().join());
         }
-        return hexString.toString();
+        return results;
     }
 
-    //in charge of calculating the distance two hashes using the bitwise operation
+    //sets how many of the closest nodes must store a write before it counts as done
+    public void setWriteQuorum(int quorum) {
+        if (quorum < 1 || quorum > CLOSEST_NODE_COUNT) {
+            throw new IllegalArgumentException("Write quorum must be between 1 and " + CLOSEST_NODE_COUNT + ".");
+        }
+        this.writeQuorum = quorum;
+    }
 
-    private int calculateDistance(String hash1, String hash2) {
-        int distance = 0;
-        for (int i = 0; i < hash1.length(); i++) {
-            int val1 = Integer.parseInt(hash1.substring(i, i + 1), 16);
-            int val2 = Integer.parseInt(hash2.substring(i, i + 1), 16);
-            int xor = val1 ^ val2;
-            for (int bit = 3; bit >= 0; bit--) {
-                if ((xor & (1 << bit)) != 0) {
-                    return i * 4 + (3 - bit);
-                }
+    //the nodes responsible for a key, closest first, and whether this node is one of them.
+    //selfPosition is where this node would go among them, or -1 when it is not one
+    private static final class Replicas {
+        final List<RoutingTable.Entry> nodes;
+        final int selfPosition;
+        final boolean includesSelf;
+        final boolean fromCache;
+
+        Replicas(List<RoutingTable.Entry> nodes, int selfPosition, boolean fromCache) {
+            this.nodes = nodes;
+            this.selfPosition = selfPosition;
+            this.includesSelf = selfPosition >= 0;
+            this.fromCache = fromCache;
+        }
+
+        int size() {
+            return nodes.size() + (includesSelf ? 1 : 0);
+        }
+    }
+
+    //finds the CLOSEST_NODE_COUNT nodes to the key, counting this node as a candidate.
+    //a node that knows nobody is the closest node it knows of. with useCache the nodes
+    //a recent lookup converged on are used without looking again
+    private CompletableFuture<Replicas> findReplicas(String key, boolean useCache) {
+        Replicas cached = useCache ? cachedReplicas(key) : null;
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        HashKey keyHash = hashOf(key);
+        if (routingTable.size() == 0) {
+            return CompletableFuture.completedFuture(replicasFrom(keyHash, new ArrayList<>(), false));
+        }
+        return iterativeLookup(key, keyHash, (char) 0).thenApply(result -> replicasFrom(keyHash, result.closest, false));
+    }
+
+    //the replicas from the location cache without any network traffic, or null
+    private Replicas cachedReplicas(String key) {
+        LocationCache locations = locationCache;
+        if (locations == null) {
+            return null;
+        }
+        HashKey keyHash = hashOf(key);
+        LocationCache.Entry location = locations.get(keyHash, true);
+        return location == null ? null : replicasFrom(keyHash, location.nodes, true);
+    }
+
+    //works out whether this node is one of the replicas, given the closest other nodes
+    private Replicas replicasFrom(HashKey keyHash, List<RoutingTable.Entry> closest, boolean fromCache) {
+        if (selfHash == null) {
+            return new Replicas(closest, -1, fromCache);
+        }
+        int position = 0;
+        while (position < closest.size() && keyHash.compareDistance(closest.get(position).hash, selfHash) < 0) {
+            position++;
+        }
+        if (position >= CLOSEST_NODE_COUNT) {
+            return new Replicas(closest, -1, fromCache);
+        }
+        List<RoutingTable.Entry> others = new ArrayList<>(closest.subList(0, Math.min(closest.size(), CLOSEST_NODE_COUNT - 1)));
+        return new Replicas(others, position, fromCache);
+    }
+
+    //replicates a write, and if the replicas came from the location cache and too few
+    //of them stored it, forgets them and writes again to the replicas a full lookup finds
+    private CompletableFuture<Boolean> writeToReplicas(Replicas replicas, String key, String value, int acknowledged) {
+        return replicateWrite(replicas, key, value, acknowledged).thenCompose(stored -> stored || !replicas.fromCache
+                ? CompletableFuture.completedFuture(stored)
+                : writeAfterLookup(key, value));
+    }
+
+    private CompletableFuture<Boolean> writeAfterLookup(String key, String value) {
+        LocationCache locations = locationCache;
+        if (locations != null) {
+            locations.invalidate(hashOf(key));
+        }
+        return findReplicas(key, false).thenCompose(found -> {
+            int foundAcknowledged = 0;
+            if (found.includesSelf) {
+                dataStore.put(key, value);
+                foundAcknowledged++;
             }
+            return replicateWrite(found, key, value, foundAcknowledged);
+        });
+    }
+
+    //sends W to every replica at once and completes once writeQuorum of them (counting
+    //the acknowledgements already made locally) have stored it, or it can no longer happen
+    private CompletableFuture<Boolean> replicateWrite(Replicas replicas, String key, String value, int acknowledged) {
+        WriteTally tally = new WriteTally(Math.min(writeQuorum, replicas.size()), acknowledged, replicas.nodes.size());
+        for (RoutingTable.Entry node : replicas.nodes) {
+            sendRequest(node.address, 'W', body -> body.string(key).string(value))
+                    .whenComplete((payload, error) -> tally.answered(error == null && stored(payload)));
         }
-        return 256;
+        return tally.result;
     }
 
-    //Generates a unique transaction id for the crn message
-    private String generateTransactionId() {
-        char c1 = (char) ('A' + randomGenerator.nextInt(26));
-        char c2 = (char) ('A' + randomGenerator.nextInt(26));
-        return String.valueOf(c1) + c2;
+    //whether the payload of an X reply says the value was added (A) or replaced (R)
+    static boolean stored(String payload) {
+        return !payload.isEmpty() && (payload.charAt(0) == 'A' || payload.charAt(0) == 'R');
     }
 
-    public Set<String> getKnownNodeNames() {
-        return new HashSet<>(nodeDirectory.keySet());
+    //the node that decides swaps on the key, or null if it is this node or there is
+    //none. a lookup leaves out nodes that did not answer it, so the closest node in the
+    //routing table counts too, or a single lost N could hand the decision to another node
+    private RoutingTable.Entry swapDecider(Replicas replicas, HashKey keyHash) {
+        RoutingTable.Entry decider = replicas.nodes.isEmpty() ? null : replicas.nodes.get(0);
+        for (RoutingTable.Entry known : routingTable.closest(keyHash, 1)) {
+            if (decider == null || keyHash.compareDistance(known.hash, decider.hash) < 0) {
+                decider = known;
+            }
+        }
+        if (replicas.includesSelf && (decider == null || keyHash.compareDistance(selfHash, decider.hash) < 0)) {
+            return null;
+        }
+        return decider;
+    }
+
+    //sends the key's value on to the other replicas after this node, as the closest,
+    //has decided a swap on it. only one round of W requests for a key is in flight at a
+    //time, each carrying the value as it is when the round starts, and another round
+    //follows if a swap changed it meanwhile. a W has no version, so this is what stops
+    //a slow or retransmitted W from leaving a replica behind the last swap
+    private void passOn(String key) {
+        if (passingOn.put(key, Boolean.TRUE) == null) {
+            passOnRound(key);
+        }
+    }
+
+    private void passOnRound(String key) {
+        passingOn.put(key, Boolean.FALSE);
+        String value = dataStore.get(key);
+        List<RoutingTable.Entry> others = value == null ? Collections.emptyList() : routingTable.closest(hashOf(key), CLOSEST_NODE_COUNT - 1);
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[others.size()];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = sendRequest(others.get(i).address, 'W', body -> body.string(key).string(value)).handle((payload, error) -> null);
+        }
+        CompletableFuture.allOf(sent).whenComplete((done, error) -> {
+            // Finished unless a swap marked the key again while the round was out
+            if (!passingOn.remove(key, Boolean.FALSE)) {
+                passOnRound(key);
+            }
+        });
+    }
+
+    //the replicas' answers to the R requests for one key, completing with the first
+    //value or with null once every replica has answered without one
+    private static final class ReadTally {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        private int outstanding;
+
+        ReadTally(int outstanding) {
+            this.outstanding = outstanding;
+        }
+
+        synchronized void answered(String value) {
+            outstanding--;
+            if (value != null) {
+                result.complete(value);
+            } else if (outstanding == 0) {
+                result.complete(null);
+            }
+        }
+    }
+
+    //counts the replicas' answers to the W requests for one key
+    private static final class WriteTally {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final int quorum;
+        private int acknowledged;
+        private int outstanding;
+
+        WriteTally(int quorum, int acknowledged, int outstanding) {
+            this.quorum = quorum;
+            this.acknowledged = acknowledged;
+            this.outstanding = outstanding;
+            settle();
+        }
+
+        synchronized void answered(boolean stored) {
+            outstanding--;
+            if (stored) {
+                acknowledged++;
+            }
+            settle();
+        }
+
+        private void settle() {
+            if (acknowledged >= quorum) {
+                result.complete(true);
+            } else if (acknowledged + outstanding < quorum) {
+                result.complete(false);
+            }
+        }
+    }
+
+    //the closest replica decides every swap, and a swap is never handed on to another
+    //replica, so as long as the nodes agree which one is closest two swaps from the same
+    //value cannot both succeed. when that is this node its own store decides and the
+    //other replicas are sent the new value. otherwise that replica is sent a C, which it
+    //answers as soon as it has swapped and then sends the value on itself, so the swap
+    //takes a single round trip. the C is sent again with the same transaction id until
+    //a reply comes or SWAP_RETRANSMIT_MS has passed, so a copy that arrives after the
+    //swap was made gets the reply from the replica's reply cache rather than being
+    //refused. completes with null if there is no reply by then, in which case the swap
+    //may have been made.
+    //
+    //the other replicas get the value some time after the swap, see passOn, so a read
+    //that one of them answers can be behind for a while. swaps are not, since they are
+    //decided by the closest replica's store
+    private CompletableFuture<Boolean> swapAtClosest(Replicas replicas, String key, String oldValue, String newValue) {
+        RoutingTable.Entry node = swapDecider(replicas, hashOf(key));
+        if (node == null && replicas.includesSelf) {
+            if (!dataStore.compareAndSet(key, oldValue, newValue)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            // The swap is made, however many of the other replicas get the new value
+            passOn(key);
+            return CompletableFuture.completedFuture(true);
+        }
+        if (node == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return sendRequest(node.address, 'C', body -> body.string(key).string(oldValue).string(newValue), SWAP_RETRANSMIT_MS)
+                .handle((payload, error) -> error == null ? payload.trim() : null)
+                .thenCompose(outcome -> {
+                    if (outcome == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (outcome.equals("R") || outcome.equals("A")) {
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    // Reads come from this node's own copy first, so if that is what was
+                    // refused it is behind and has to catch up or every retry will fail too
+                    if (!oldValue.equals(dataStore.get(key))) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return sendRequest(node.address, 'R', body -> body.string(key)).handle((payload, error) -> {
+                        if (error == null && payload.startsWith("Y")) {
+                            dataStore.compareAndSet(key, oldValue, readValue(payload));
+                        }
+                        return false;
+                    });
+                });
     }
 
-    //it starts a background thread to listen for incoming messages indefinitely
-    private void startMessageListener() {
-        messageListenerThread = new Thread(() -> {
+    //offers a node to the routing table. if its bucket is full the oldest node there
+    //is pinged and only replaced if it does not answer. returns the node's entry, or
+    //null if the name is not a node name
+    private RoutingTable.Entry learnNode(String nodeName, InetSocketAddress address) {
+        if (!nodeName.startsWith("N:")) {
+            return null;
+        }
+        RoutingTable.Entry known = routingTable.get(nodeName);
+        RoutingTable.Entry entry;
+        if (known != null && known.address.equals(address)) {
+            entry = known;
+        } else {
             try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    handleIncomingMessages(0);
-                }
+                entry = new RoutingTable.Entry(nodeName, known != null ? known.hash : HashKey.of(nodeName), address);
             } catch (Exception e) {
-                if (enableDebug) {
-                    System.err.println("Message listener error: " + e.getMessage());
-                }
+                return null;
             }
+        }
+
+        RoutingTable table = routingTable;
+        RoutingTable.Entry oldest = table.offer(entry);
+        if (oldest != null) {
+            sendRequest(oldest.address, 'G', body -> { }).whenComplete((payload, error) -> {
+                if (error == null) {
+                    table.pingAnswered(oldest);
+                } else {
+                    table.pingFailed(oldest);
+                }
+            });
+        }
+        return entry;
+    }
+
+    //keeps this node's keys in an append only log at path, so they are still there when
+    //the node is restarted with the same path. it has to be called before openPort
+    public void setStoreFile(String path) throws IOException {
+        if (transport != null) {
+            throw new IllegalStateException("setStoreFile must be called before openPort.");
+        }
+        dataStore = new LogStructuredStore(java.nio.file.Paths.get(path));
+    }
+
+    //keeps this node's keys and values as UTF-8 bytes outside the heap, which takes far
+    //less memory and keeps the collector's pauses short when there are millions of them.
+    //it has to be called before openPort
+    public void setOffHeapStore(boolean enabled) {
+        if (transport != null) {
+            throw new IllegalStateException("setOffHeapStore must be called before openPort.");
+        }
+        dataStore = enabled ? new OffHeapKeyValueStore() : new ConcurrentKeyValueStore();
+    }
+
+    //the number of worker threads for cheap and expensive requests and how many requests
+    //each may have waiting. takes effect when the port is opened
+    public void setWorkerThreads(int lightThreads, int heavyThreads, int queueSize) {
+        if (lightThreads < 1 || heavyThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Worker threads and queue size must be at least 1.");
+        }
+        this.lightWorkerThreads = lightThreads;
+        this.heavyWorkerThreads = heavyThreads;
+        this.workerQueueSize = queueSize;
+    }
+
+    //turns on admission control, which is off until this is called. how many cheap
+    //(G, R, E) and expensive (N, V, W, C) requests a second each sender may have
+    //handled, with a second's worth allowed in a burst. 0 leaves that kind unlimited.
+    //with shedWhenOverloaded N and V are turned away once the workers are half full,
+    //and W, C and E at three quarters, so reads still get through
+    public void setAdmissionControl(long cheapPerSecond, long expensivePerSecond, boolean shedWhenOverloaded) {
+        admission = new AdmissionController(cheapPerSecond, expensivePerSecond, shedWhenOverloaded);
+    }
+
+    //turns admission control off again, so every request goes through to the workers,
+    //which drop them only when full
+    public void disableAdmissionControl() {
+        admission = null;
+    }
+
+    //hands requests to workers that are shared with other nodes, instead of the node
+    //starting its own. SimulatedNetwork uses it so a thousand nodes do not need four
+    //thousand threads. it has to be called before the node is opened
+    void shareDispatcher(Dispatcher shared) {
+        if (transport != null) {
+            throw new IllegalStateException("shareDispatcher must be called before openPort.");
+        }
+        this.dispatcher = shared;
+    }
+
+    //runs each request on its own virtual thread where the runtime has them, with at
+    //most queueSize requests in flight per lane. takes effect when the port is opened
+    public void setVirtualThreadWorkers(boolean enabled) {
+        this.virtualThreadWorkers = enabled;
+    }
+
+    //how many sockets openPort binds to the port with SO_REUSEPORT, each read by a
+    //listener thread of its own. takes effect when the port is opened
+    public void setReceiveShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A node needs at least one receive shard.");
+        }
+        this.receiveShards = shards;
+    }
+
+    //how long a known node may go unheard before it is probed with a G, 0 turns the
+    //probing off. takes effect when the port is opened
+    public void setProbeInterval(long idleMillis) {
+        if (idleMillis < 0) {
+            throw new IllegalArgumentException("Probe interval cannot be negative.");
+        }
+        this.probeIdleMillis = idleMillis;
+    }
+
+    //the node's counters and latency histograms. they are also registered with the
+    //platform MBean server when the port is opened, as crn:type=Node,address="<address>"
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    //hands a snapshot of the metrics to report every periodMillis, on the timer thread,
+    //so report must be quick. a period of 0 stops the reports
+    public synchronized void reportMetrics(long periodMillis, Consumer<NodeMetrics.Snapshot> report) {
+        if (metricsReports != null) {
+            metricsReports.cancel(false);
+            metricsReports = null;
+        }
+        if (periodMillis > 0) {
+            metricsReports = TIMER.scheduleAtFixedRate(() -> report.accept(metrics.snapshot()),
+                    periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //the gauges are read from the node whenever a snapshot is taken
+    private void registerMetrics(InetSocketAddress address) {
+        metrics.gauge("storeSize", () -> dataStore.size());
+        metrics.gauge("knownNodes", () -> routingTable.size());
+        metrics.gauge("pendingRequests", pendingRequests::size);
+        metrics.gauge("droppedRequests", this::getDroppedRequests);
+        metrics.gauge("hotKeysCached", () -> {
+            HotKeyCache hot = hotKeys;
+            return hot == null ? 0 : hot.size();
         });
-        messageListenerThread.setDaemon(true);
-        messageListenerThread.start();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("crn:type=Node,address=" + ObjectName.quote(address.toString())));
+        } catch (Exception e) {
+            // The metrics can still be read through getMetrics
+            if (enableDebug) {
+                System.err.println("Could not register metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    //requests dropped because the workers could not keep up
+    public long getDroppedRequests() {
+        return dispatcher == null ? 0 : dispatcher.droppedLight() + dispatcher.droppedHeavy();
+    }
+
+    //requests shed by admission control, for their sender's rate or for overload
+    public long getShedRequests() {
+        return metrics.getRateLimited() + metrics.getOverloadShed();
+    }
+
+    //round trip estimate and retransmit/timeout counters for a known node, or null
+    public PeerStats getPeerStats(String nodeName) {
+        InetSocketAddress address = routingTable.address(nodeName);
+        return address == null ? null : peerStats.get(address);
+    }
+
+    public Set<String> getKnownNodeNames() {
+        return routingTable.names();
     }
 
     // Main method for testing purposes
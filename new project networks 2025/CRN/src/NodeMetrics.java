@@ -0,0 +1,301 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Counters and latency histograms for one node, cheap enough to update on every packet.
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+//the listener, worker and timer threads update these as they go with nothing more than
+//atomic adds, and nothing is turned into strings until a snapshot is asked for. the
+//round trip of a request is timed from when it is first sent, so retransmissions show
+//up in the tail. values that are cheaper to read when asked for, like the store size,
+//are registered as gauges
+class NodeMetrics implements NodeMetricsMXBean {
+
+    // the request types whose round trips are timed
+    private static final String REQUEST_TYPES = "GNERWC";
+    private static final int TYPES = 128;
+
+    private final AtomicLongArray received = new AtomicLongArray(TYPES);
+    private final AtomicLongArray sent = new AtomicLongArray(TYPES);
+    private final AtomicLongArray shed = new AtomicLongArray(TYPES);
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong overloadShed = new AtomicLong();
+    private final AtomicLong parseFailures = new AtomicLong();
+    private final AtomicLong duplicateRequests = new AtomicLong();
+    private final AtomicLong relayedReplies = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final Histogram[] roundTrips = new Histogram[TYPES];
+    private final Histogram lookupLatency = new Histogram();
+    private final Histogram lookupHops = new Histogram();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    NodeMetrics() {
+        for (char type : REQUEST_TYPES.toCharArray()) {
+            roundTrips[type] = new Histogram();
+        }
+    }
+
+    void received(char messageType) {
+        if (messageType < TYPES) {
+            received.incrementAndGet(messageType);
+        }
+    }
+
+    void sent(char messageType) {
+        if (messageType < TYPES) {
+            sent.incrementAndGet(messageType);
+        }
+    }
+
+    //a request turned away before it reached a worker, because its sender was over its
+    //rate or because the node was overloaded
+    void shed(char messageType, boolean overloaded) {
+        if (messageType < TYPES) {
+            shed.incrementAndGet(messageType);
+        }
+        (overloaded ? overloadShed : rateLimited).incrementAndGet();
+    }
+
+    void parseFailure() {
+        parseFailures.incrementAndGet();
+    }
+
+    //a retransmitted request answered from the reply cache
+    void duplicateRequest() {
+        duplicateRequests.incrementAndGet();
+    }
+
+    //a reply passed back along a relay route without being parsed
+    void relayedReply() {
+        relayedReplies.incrementAndGet();
+    }
+
+    void timeout() {
+        timeouts.incrementAndGet();
+    }
+
+    void retransmit() {
+        retransmits.incrementAndGet();
+    }
+
+    void roundTrip(char requestType, long nanos) {
+        Histogram histogram = requestType < TYPES ? roundTrips[requestType] : null;
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    //a finished iterative lookup, hops being how many replies deep the furthest node
+    //it asked was found
+    void lookup(long nanos, int hops) {
+        lookupLatency.record(nanos);
+        lookupHops.record(hops);
+    }
+
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    //everything at one moment, the way the periodic reports hand it out
+    static final class Snapshot {
+        final long takenAt = System.currentTimeMillis();
+        final Map<Character, Long> received = new TreeMap<>();
+        final Map<Character, Long> sent = new TreeMap<>();
+        final Map<Character, Long> shed = new TreeMap<>();
+        final long rateLimited;
+        final long overloadShed;
+        final long parseFailures;
+        final long duplicateRequests;
+        final long relayedReplies;
+        final long timeouts;
+        final long retransmits;
+        final Map<String, Long> gauges = new TreeMap<>();
+        final Map<Character, Histogram.Snapshot> roundTrips = new TreeMap<>();
+        final Histogram.Snapshot lookupLatency;
+        final Histogram.Snapshot lookupHops;
+
+        private Snapshot(NodeMetrics metrics) {
+            for (int type = 0; type < TYPES; type++) {
+                long in = metrics.received.get(type);
+                long out = metrics.sent.get(type);
+                long turnedAway = metrics.shed.get(type);
+                if (in > 0) {
+                    received.put((char) type, in);
+                }
+                if (out > 0) {
+                    sent.put((char) type, out);
+                }
+                if (turnedAway > 0) {
+                    shed.put((char) type, turnedAway);
+                }
+            }
+            rateLimited = metrics.rateLimited.get();
+            overloadShed = metrics.overloadShed.get();
+            parseFailures = metrics.parseFailures.get();
+            duplicateRequests = metrics.duplicateRequests.get();
+            relayedReplies = metrics.relayedReplies.get();
+            timeouts = metrics.timeouts.get();
+            retransmits = metrics.retransmits.get();
+            for (Map.Entry<String, LongSupplier> gauge : metrics.gauges.entrySet()) {
+                gauges.put(gauge.getKey(), gauge.getValue().getAsLong());
+            }
+            for (char type : REQUEST_TYPES.toCharArray()) {
+                roundTrips.put(type, metrics.roundTrips[type].snapshot());
+            }
+            lookupLatency = metrics.lookupLatency.snapshot();
+            lookupHops = metrics.lookupHops.snapshot();
+        }
+
+        //the given percentile of each request type's round trips, in milliseconds
+        Map<String, Double> roundTripMillis(double percentile) {
+            Map<String, Double> millis = new TreeMap<>();
+            for (Map.Entry<Character, Histogram.Snapshot> entry : roundTrips.entrySet()) {
+                Histogram.Snapshot histogram = entry.getValue();
+                if (histogram.count() > 0) {
+                    long nanos = percentile >= 100 ? histogram.max() : histogram.percentile(percentile);
+                    millis.put(String.valueOf(entry.getKey()), nanos / 1_000_000.0);
+                }
+            }
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("received      ").append(received).append('\n');
+            text.append("sent          ").append(sent).append('\n');
+            text.append(String.format("shed          %s rate-limited=%d overloaded=%d%n", shed, rateLimited, overloadShed));
+            text.append(String.format("errors        parse=%d duplicates=%d relayed=%d timeouts=%d retransmits=%d%n",
+                    parseFailures, duplicateRequests, relayedReplies, timeouts, retransmits));
+            text.append("gauges        ").append(gauges).append('\n');
+            for (Map.Entry<Character, Histogram.Snapshot> entry : roundTrips.entrySet()) {
+                Histogram.Snapshot histogram = entry.getValue();
+                if (histogram.count() > 0) {
+                    text.append(String.format("rtt %c (ms)    n=%d p50=%.2f p99=%.2f max=%.2f%n", entry.getKey(),
+                            histogram.count(), histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.max() / 1e6));
+                }
+            }
+            text.append(String.format("lookups (ms)  n=%d p50=%.2f p99=%.2f max=%.2f hops mean=%.2f max=%d",
+                    lookupLatency.count(), lookupLatency.percentile(50) / 1e6, lookupLatency.percentile(99) / 1e6,
+                    lookupLatency.max() / 1e6, lookupHops.mean(), lookupHops.max()));
+            return text.toString();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        return byType(received);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        return byType(sent);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesShed() {
+        return byType(shed);
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    @Override
+    public long getOverloadShed() {
+        return overloadShed.get();
+    }
+
+    @Override
+    public long getParseFailures() {
+        return parseFailures.get();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return duplicateRequests.get();
+    }
+
+    @Override
+    public long getRelayedReplies() {
+        return relayedReplies.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return snapshot().gauges;
+    }
+
+    @Override
+    public Map<String, Double> getRoundTripP50Millis() {
+        return snapshot().roundTripMillis(50);
+    }
+
+    @Override
+    public Map<String, Double> getRoundTripP99Millis() {
+        return snapshot().roundTripMillis(99);
+    }
+
+    @Override
+    public Map<String, Double> getRoundTripMaxMillis() {
+        return snapshot().roundTripMillis(100);
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.count();
+    }
+
+    @Override
+    public double getLookupP50Millis() {
+        return lookupLatency.snapshot().percentile(50) / 1_000_000.0;
+    }
+
+    @Override
+    public double getLookupP99Millis() {
+        return lookupLatency.snapshot().percentile(99) / 1_000_000.0;
+    }
+
+    @Override
+    public double getLookupMeanHops() {
+        return lookupHops.snapshot().mean();
+    }
+
+    @Override
+    public long getLookupMaxHops() {
+        return lookupHops.snapshot().max();
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray counts) {
+        Map<String, Long> byType = new TreeMap<>();
+        for (int type = 0; type < TYPES; type++) {
+            long count = counts.get(type);
+            if (count > 0) {
+                byType.put(String.valueOf((char) type), count);
+            }
+        }
+        return byType;
+    }
+}
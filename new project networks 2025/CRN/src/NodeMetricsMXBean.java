@@ -0,0 +1,49 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// What a node's metrics look like to JMX tools such as jconsole.
+
+import java.util.Map;
+
+//maps are keyed by message or request type. times are in milliseconds and all counts
+//are totals since the node started
+public interface NodeMetricsMXBean {
+
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getMessagesSent();
+
+    Map<String, Long> getMessagesShed();
+
+    long getRateLimited();
+
+    long getOverloadShed();
+
+    long getParseFailures();
+
+    long getDuplicateRequests();
+
+    long getRelayedReplies();
+
+    long getTimeouts();
+
+    long getRetransmits();
+
+    Map<String, Long> getGauges();
+
+    Map<String, Double> getRoundTripP50Millis();
+
+    Map<String, Double> getRoundTripP99Millis();
+
+    Map<String, Double> getRoundTripMaxMillis();
+
+    long getLookups();
+
+    double getLookupP50Millis();
+
+    double getLookupP99Millis();
+
+    double getLookupMeanHops();
+
+    long getLookupMaxHops();
+}
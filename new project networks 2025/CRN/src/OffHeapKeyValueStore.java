@@ -0,0 +1,318 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Key/value store that keeps keys and values as UTF-8 bytes outside the Java heap.
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//a map entry for a short D: key costs a node, two Strings and their arrays, well over a
+//hundred bytes in objects the collector has to trace. here each entry is a record in an
+//arena of direct buffers, a two byte key length and four byte value length followed by
+//the key and value in UTF-8, and the index is open addressing over two long arrays, one
+//holding a 64 bit hash of each key and the other where its record is. the heap holds
+//no object per entry at all, and the index grows without reading any records since
+//the hashes are already there.
+//
+//the store is split into SEGMENTS by the top bits of the hash, each with its own lock,
+//index and arena, so operations on different segments never wait on each other. a
+//value replaced by one of the same length is overwritten where it is, otherwise the
+//new record is appended and the old one counted as garbage. once a segment holds more
+//garbage than live records, and at least MIN_COMPACTION_BYTES of it, its live records
+//are copied into a fresh arena
+class OffHeapKeyValueStore implements KeyValueStore {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SLOTS = 64;
+    private static final int FIRST_SLAB_SIZE = 16 * 1024;
+    private static final int MAX_SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 6;
+    static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    OffHeapKeyValueStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = encodeKey(key);
+        long hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(hash, keyBytes);
+            return slot < 0 ? null : segment.value(segment.addresses[slot]);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        byte[] keyBytes = encodeKey(key);
+        long hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.find(hash, keyBytes) >= 0;
+        }
+    }
+
+    @Override
+    public String put(String key, String value) {
+        byte[] keyBytes = encodeKey(key);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(hash, keyBytes);
+            if (slot < 0) {
+                segment.insert(-slot - 1, hash, keyBytes, valueBytes);
+                return null;
+            }
+            String previous = segment.value(segment.addresses[slot]);
+            segment.replace(slot, keyBytes, valueBytes);
+            return previous;
+        }
+    }
+
+    @Override
+    public Swap compareAndSwap(String key, String expectedValue, String newValue) {
+        byte[] keyBytes = encodeKey(key);
+        byte[] valueBytes = newValue.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(hash, keyBytes);
+            if (slot < 0) {
+                segment.insert(-slot - 1, hash, keyBytes, valueBytes);
+                return Swap.ADDED;
+            }
+            // Compared as bytes, so the stored value is never decoded
+            if (expectedValue == null || !segment.valueEquals(segment.addresses[slot], expectedValue.getBytes(StandardCharsets.UTF_8))) {
+                return Swap.REFUSED;
+            }
+            segment.replace(slot, keyBytes, valueBytes);
+            return Swap.REPLACED;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    //the direct memory the arenas hold, live records, garbage and free space included
+    long arenaBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < segment.slabCount; i++) {
+                    bytes += segment.slabs[i].capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    //the heap the index arrays take up
+    long indexBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += 16L * segment.hashes.length;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static byte[] encodeKey(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Keys longer than 65535 bytes cannot be stored.");
+        }
+        return keyBytes;
+    }
+
+    //FNV-1a over the bytes with a final mix so the low bits used for slots and the high
+    //bits used for segments are both spread out. never 0, which marks an empty slot
+    static long hash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    //one lock's worth of the store. an address is the slab's index in the top 32 bits
+    //and the record's offset in that slab in the bottom 32
+    private static final class Segment {
+        long[] hashes = new long[INITIAL_SLOTS];
+        long[] addresses = new long[INITIAL_SLOTS];
+        int count = 0;
+
+        ByteBuffer[] slabs = new ByteBuffer[4];
+        int slabCount = 0;
+        int nextSlabSize = FIRST_SLAB_SIZE;
+        long liveBytes = 0;
+        long garbageBytes = 0;
+
+        //the slot holding the key, or -(slot + 1) for the empty slot it would go in
+        int find(long hash, byte[] keyBytes) {
+            int mask = hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (true) {
+                long stored = hashes[slot];
+                if (stored == 0) {
+                    return -slot - 1;
+                }
+                if (stored == hash && keyEquals(addresses[slot], keyBytes)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void insert(int slot, long hash, byte[] keyBytes, byte[] valueBytes) {
+            hashes[slot] = hash;
+            addresses[slot] = append(keyBytes, valueBytes);
+            count++;
+            // Grow at three quarters full so probe runs stay short
+            if (count * 4L > hashes.length * 3L) {
+                resize(hashes.length * 2);
+            }
+        }
+
+        void replace(int slot, byte[] keyBytes, byte[] valueBytes) {
+            long address = addresses[slot];
+            ByteBuffer slab = slabs[(int) (address >>> 32)];
+            int offset = (int) address;
+            int valueLength = slab.getInt(offset + 2);
+            if (valueLength == valueBytes.length) {
+                slab.put(offset + RECORD_HEADER + keyBytes.length, valueBytes);
+                return;
+            }
+            long oldRecord = RECORD_HEADER + keyBytes.length + valueLength;
+            liveBytes -= oldRecord;
+            garbageBytes += oldRecord;
+            addresses[slot] = append(keyBytes, valueBytes);
+            if (garbageBytes > liveBytes && garbageBytes >= MIN_COMPACTION_BYTES) {
+                compact();
+            }
+        }
+
+        String value(long address) {
+            ByteBuffer slab = slabs[(int) (address >>> 32)];
+            int offset = (int) address;
+            int keyLength = slab.getShort(offset) & 0xFFFF;
+            byte[] valueBytes = new byte[slab.getInt(offset + 2)];
+            slab.get(offset + RECORD_HEADER + keyLength, valueBytes);
+            return new String(valueBytes, StandardCharsets.UTF_8);
+        }
+
+        boolean valueEquals(long address, byte[] expected) {
+            ByteBuffer slab = slabs[(int) (address >>> 32)];
+            int offset = (int) address;
+            if (slab.getInt(offset + 2) != expected.length) {
+                return false;
+            }
+            return bytesEqual(slab, offset + RECORD_HEADER + (slab.getShort(offset) & 0xFFFF), expected);
+        }
+
+        private boolean keyEquals(long address, byte[] keyBytes) {
+            ByteBuffer slab = slabs[(int) (address >>> 32)];
+            int offset = (int) address;
+            return (slab.getShort(offset) & 0xFFFF) == keyBytes.length && bytesEqual(slab, offset + RECORD_HEADER, keyBytes);
+        }
+
+        private static boolean bytesEqual(ByteBuffer slab, int offset, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (slab.get(offset + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //writes a record at the end of the arena, starting a new slab if it does not fit
+        private long append(byte[] keyBytes, byte[] valueBytes) {
+            int length = RECORD_HEADER + keyBytes.length + valueBytes.length;
+            ByteBuffer slab = slabCount == 0 ? null : slabs[slabCount - 1];
+            if (slab == null || slab.remaining() < length) {
+                slab = ByteBuffer.allocateDirect(Math.max(nextSlabSize, length));
+                nextSlabSize = Math.min(nextSlabSize * 2, MAX_SLAB_SIZE);
+                if (slabCount == slabs.length) {
+                    slabs = Arrays.copyOf(slabs, slabCount * 2);
+                }
+                slabs[slabCount++] = slab;
+            }
+            int offset = slab.position();
+            slab.putShort((short) keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+            liveBytes += length;
+            return ((long) (slabCount - 1) << 32) | offset;
+        }
+
+        //rehashes into a bigger index using the stored hashes, the arena is not touched
+        private void resize(int slots) {
+            long[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            hashes = new long[slots];
+            addresses = new long[slots];
+            int mask = slots - 1;
+            for (int i = 0; i < oldHashes.length; i++) {
+                long hash = oldHashes[i];
+                if (hash == 0) {
+                    continue;
+                }
+                int slot = (int) hash & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = hash;
+                addresses[slot] = oldAddresses[i];
+            }
+        }
+
+        //copies every live record into a fresh arena sized to hold them, and lets the
+        //old slabs go to be freed with their garbage
+        private void compact() {
+            ByteBuffer[] oldSlabs = slabs;
+            slabs = new ByteBuffer[4];
+            slabCount = 0;
+            nextSlabSize = (int) Math.min(Math.max(liveBytes, FIRST_SLAB_SIZE), MAX_SLAB_SIZE);
+            liveBytes = 0;
+            garbageBytes = 0;
+            for (int slot = 0; slot < hashes.length; slot++) {
+                if (hashes[slot] == 0) {
+                    continue;
+                }
+                long address = addresses[slot];
+                ByteBuffer slab = oldSlabs[(int) (address >>> 32)];
+                int offset = (int) address;
+                byte[] keyBytes = new byte[slab.getShort(offset) & 0xFFFF];
+                byte[] valueBytes = new byte[slab.getInt(offset + 2)];
+                slab.get(offset + RECORD_HEADER, keyBytes);
+                slab.get(offset + RECORD_HEADER + keyBytes.length, valueBytes);
+                addresses[slot] = append(keyBytes, valueBytes);
+            }
+        }
+    }
+}
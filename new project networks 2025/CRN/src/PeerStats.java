@@ -0,0 +1,155 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Round trip time estimate, request counters and liveness for one peer.
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//keeps a smoothed round trip time and its variation the same way tcp does (rfc 6298)
+//and turns them into the retransmission timeout used for requests to this peer.
+//it also keeps when the peer was last heard from and how many of our requests in a
+//row it has let time out, which is what its liveness is worked out from
+class PeerStats {
+
+    //ALIVE has answered its last request, or has not been asked anything yet. SUSPECT
+    //has let requests time out since, and DEAD has let DEAD_AFTER_FAILURES in a row time
+    //out. timeouts less than FAILURE_SPACING_MS apart, like those of the requests a
+    //lookup sends a node together, count as one failure, so a burst of loss on a busy
+    //path is not taken for a dead node. anything heard from the peer makes it ALIVE again
+    enum Liveness { ALIVE, SUSPECT, DEAD }
+
+    static final int DEAD_AFTER_FAILURES = 3;
+    static final long FAILURE_SPACING_MS = 1000;
+
+    static final long INITIAL_RTO_MS = 500;
+    static final long MIN_RTO_MS = 100;
+    static final long MAX_RTO_MS = 2000;
+
+    private double smoothedRttMillis = -1;
+    private double rttVariationMillis = 0;
+    private long rtoMillis = INITIAL_RTO_MS;
+    private int consecutiveFailures = 0;
+    private volatile long lastHeardMillis = 0;     // 0 until the peer is first heard from
+    private volatile long lastFailedMillis = 0;
+    private long lastCountedFailureMillis = 0;
+    private volatile long lastRequestMillis = 0;
+    // requests to the peer that have not been answered or timed out yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    //feeds in a round trip time measured from a request that was only sent once
+    synchronized void recordRtt(long rttNanos) {
+        double rtt = rttNanos / 1_000_000.0;
+        if (smoothedRttMillis < 0) {
+            smoothedRttMillis = rtt;
+            rttVariationMillis = rtt / 2;
+        } else {
+            rttVariationMillis = 0.75 * rttVariationMillis + 0.25 * Math.abs(smoothedRttMillis - rtt);
+            smoothedRttMillis = 0.875 * smoothedRttMillis + 0.125 * rtt;
+        }
+        long rto = (long) Math.ceil(smoothedRttMillis + Math.max(1, 4 * rttVariationMillis));
+        rtoMillis = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+    }
+
+    //the timeout for the given transmission of a request, doubling on every retry
+    synchronized long retransmissionTimeout(int transmission) {
+        return Math.min(MAX_RTO_MS, rtoMillis << Math.min(transmission - 1, 8));
+    }
+
+    void recordRequest() {
+        requests.incrementAndGet();
+        lastRequestMillis = System.currentTimeMillis();
+    }
+
+    //a request to the peer has been registered, requestFinished is called once it has
+    //been answered or has timed out
+    void requestStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    void requestFinished() {
+        outstanding.decrementAndGet();
+    }
+
+    //true when nothing is waiting on the peer and it has not been asked or heard from
+    //since the given time, so forgetting it loses nothing but its round trip estimate
+    boolean idleSince(long millis) {
+        return outstanding.get() == 0
+                && Math.max(lastRequestMillis, Math.max(lastHeardMillis, lastFailedMillis)) < millis;
+    }
+
+    void recordRetransmit() {
+        retransmits.incrementAndGet();
+    }
+
+    //a request to the peer got no reply after all its retransmissions
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (consecutiveFailures == 0 || now - lastCountedFailureMillis >= FAILURE_SPACING_MS) {
+                consecutiveFailures++;
+                lastCountedFailureMillis = now;
+            }
+        }
+        lastFailedMillis = now;
+    }
+
+    //a reply or a message of its own arrived from the peer
+    void recordHeard() {
+        lastHeardMillis = System.currentTimeMillis();
+        synchronized (this) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    synchronized Liveness liveness() {
+        if (consecutiveFailures == 0) {
+            return Liveness.ALIVE;
+        }
+        return consecutiveFailures < DEAD_AFTER_FAILURES ? Liveness.SUSPECT : Liveness.DEAD;
+    }
+
+    long getLastHeardMillis() {
+        return lastHeardMillis;
+    }
+
+    long getLastFailedMillis() {
+        return lastFailedMillis;
+    }
+
+    //smoothed round trip time in milliseconds, or -1 before the first measurement
+    synchronized double getSmoothedRttMillis() {
+        return smoothedRttMillis;
+    }
+
+    synchronized double getRttVariationMillis() {
+        return rttVariationMillis;
+    }
+
+    synchronized long getRtoMillis() {
+        return rtoMillis;
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    long getRetransmitCount() {
+        return retransmits.get();
+    }
+
+    long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt=%.2fms rttvar=%.2fms rto=%dms requests=%d retransmits=%d timeouts=%d %s",
+                smoothedRttMillis, rttVariationMillis, rtoMillis, requests.get(), retransmits.get(), timeouts.get(), liveness());
+    }
+}
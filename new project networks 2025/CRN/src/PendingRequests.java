@@ -0,0 +1,244 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Table of the requests a node has sent and is still waiting on a reply for.
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+//every request is keyed by the peer it was sent to and its transaction id, so a
+//reply is only ever handed to the request it belongs to. once a request is finished
+//its id is held back for a while so a late reply cannot be matched to a new request.
+//unanswered requests are sent again, with the same id, on the peer's retransmission
+//timeout until MAX_RETRANSMITS is used up, or for requests that must not be handled
+//twice under different ids, until a given time has passed
+class PendingRequests {
+
+    static final int MAX_RETRANSMITS = 2;
+
+    // any printable byte apart from space can be used in a transaction id
+    private static final int FIRST_ID_CHARACTER = 0x21;
+    private static final int ID_CHARACTERS = 0x7f - FIRST_ID_CHARACTER;
+    static final long REUSE_DELAY_MS = 5000;
+    private static final int PURGE_INTERVAL = 1024;
+
+    // holds the place of a transaction id that is reserved rather than used by a request
+    private static final Request RESERVED = new Request("", null, '\0', '\0', null);
+
+    private final Map<TransactionKey, Request> pending = new ConcurrentHashMap<>();
+    private final Map<TransactionKey, Long> retired = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final NodeMetrics metrics;
+    private final Random randomGenerator = new Random();
+    private int registrationsSincePurge = 0;
+
+    PendingRequests(ScheduledExecutorService timer, NodeMetrics metrics) {
+        this.timer = timer;
+        this.metrics = metrics;
+    }
+
+    //a single outstanding request and the future its reply payload completes
+    static final class Request {
+        final String transactionId;
+        final InetSocketAddress peer;
+        final char requestType;
+        final char replyType;
+        final PeerStats stats;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        private volatile Runnable send;
+        private volatile int transmissions = 0;
+        private volatile long retransmitUntilNanos = 0;
+        private volatile long firstSentNanos;
+        private volatile long lastSentNanos;
+        private volatile ScheduledFuture<?> retransmit;
+
+        private Request(String transactionId, InetSocketAddress peer, char requestType, char replyType, PeerStats stats) {
+            this.transactionId = transactionId;
+            this.peer = peer;
+            this.requestType = requestType;
+            this.replyType = replyType;
+            this.stats = stats;
+        }
+    }
+
+    //reserves a transaction id for a request to the peer, the request is not sent
+    //until transmit is called with the code that puts it on the wire
+    Request register(InetSocketAddress peer, char requestType, PeerStats stats) {
+        char replyType = replyTypeFor(requestType);
+        purgeRetiredIfDue();
+
+        Request request;
+        TransactionKey key;
+        while (true) {
+            String transactionId = generateTransactionId();
+            key = new TransactionKey(peer, transactionId);
+            Long reusableAt = retired.get(key);
+            if (reusableAt != null && reusableAt > System.currentTimeMillis()) {
+                continue;
+            }
+            request = new Request(transactionId, peer, requestType, replyType, stats);
+            if (pending.putIfAbsent(key, request) == null) {
+                break;
+            }
+        }
+
+        TransactionKey finalKey = key;
+        Request finalRequest = request;
+        stats.requestStarted();
+        request.reply.whenComplete((payload, error) -> {
+            stats.requestFinished();
+            ScheduledFuture<?> retransmit = finalRequest.retransmit;
+            if (retransmit != null) {
+                retransmit.cancel(false);
+            }
+            if (pending.remove(finalKey, finalRequest)) {
+                retired.put(finalKey, System.currentTimeMillis() + REUSE_DELAY_MS);
+            }
+        });
+        return request;
+    }
+
+    //keeps a transaction id for traffic this node relays rather than sends, so no
+    //request of its own to the peer is given it until it is released
+    String reserve(InetSocketAddress peer) {
+        purgeRetiredIfDue();
+        while (true) {
+            String transactionId = generateTransactionId();
+            TransactionKey key = new TransactionKey(peer, transactionId);
+            Long reusableAt = retired.get(key);
+            if (reusableAt != null && reusableAt > System.currentTimeMillis()) {
+                continue;
+            }
+            if (pending.putIfAbsent(key, RESERVED) == null) {
+                return transactionId;
+            }
+        }
+    }
+
+    void release(InetSocketAddress peer, String transactionId) {
+        TransactionKey key = new TransactionKey(peer, transactionId);
+        if (pending.remove(key, RESERVED)) {
+            retired.put(key, System.currentTimeMillis() + REUSE_DELAY_MS);
+        }
+    }
+
+    //sends the request and keeps sending it on the peer's retransmission timeout
+    //until a reply arrives, the reply future fails with a TimeoutException if none does
+    void transmit(Request request, Runnable send) {
+        request.send = send;
+        request.stats.recordRequest();
+        sendAttempt(request);
+    }
+
+    //the same, but retransmits on the timeout for as long as windowMillis since the
+    //first transmission instead of MAX_RETRANSMITS times
+    void transmitFor(Request request, Runnable send, long windowMillis) {
+        request.retransmitUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        transmit(request, send);
+    }
+
+    private static boolean mayRetransmit(Request request) {
+        long until = request.retransmitUntilNanos;
+        return until != 0 ? System.nanoTime() - until < 0 : request.transmissions <= MAX_RETRANSMITS;
+    }
+
+    private void sendAttempt(Request request) {
+        if (request.reply.isDone()) {
+            return;
+        }
+        int transmission = ++request.transmissions;
+        if (transmission > 1) {
+            request.stats.recordRetransmit();
+            metrics.retransmit();
+        }
+        request.lastSentNanos = System.nanoTime();
+        if (transmission == 1) {
+            request.firstSentNanos = request.lastSentNanos;
+        }
+        request.send.run();
+        request.retransmit = timer.schedule(() -> {
+            if (request.reply.isDone()) {
+                return;
+            }
+            if (mayRetransmit(request)) {
+                sendAttempt(request);
+            } else if (request.reply.completeExceptionally(new TimeoutException(
+                    "No reply from " + request.peer + " for transaction " + request.transactionId))) {
+                request.stats.recordTimeout();
+                metrics.timeout();
+            }
+        }, request.stats.retransmissionTimeout(transmission), TimeUnit.MILLISECONDS);
+        if (request.reply.isDone()) {
+            request.retransmit.cancel(false);
+        }
+    }
+
+    //hands a reply to the request waiting for it, returns false if nobody was
+    boolean complete(InetSocketAddress sender, String transactionId, char replyType, String payload) {
+        Request request = pending.get(new TransactionKey(sender, transactionId));
+        if (request == null || request.replyType != replyType) {
+            return false;
+        }
+        // Only time requests that were sent once, a reply to a retransmitted
+        // request could be answering any of the copies
+        int transmissions = request.transmissions;
+        long now = System.nanoTime();
+        long rttNanos = now - request.lastSentNanos;
+        if (!request.reply.complete(payload)) {
+            return false;
+        }
+        request.stats.recordHeard();
+        metrics.roundTrip(request.requestType, now - request.firstSentNanos);
+        if (transmissions == 1) {
+            request.stats.recordRtt(rttNanos);
+        }
+        return true;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    //the reply type that answers each request type
+    static char replyTypeFor(char requestType) {
+        switch (requestType) {
+            case 'G': return 'H';
+            case 'N': return 'O';
+            case 'E': return 'F';
+            case 'R': return 'S';
+            case 'W': return 'X';
+            case 'C': return 'D';
+            default:
+                throw new IllegalArgumentException("Not a request type: " + requestType);
+        }
+    }
+
+    private String generateTransactionId() {
+        char c1;
+        char c2;
+        synchronized (randomGenerator) {
+            c1 = (char) (FIRST_ID_CHARACTER + randomGenerator.nextInt(ID_CHARACTERS));
+            c2 = (char) (FIRST_ID_CHARACTER + randomGenerator.nextInt(ID_CHARACTERS));
+        }
+        return String.valueOf(c1) + c2;
+    }
+
+    private void purgeRetiredIfDue() {
+        synchronized (retired) {
+            if (++registrationsSincePurge < PURGE_INTERVAL) {
+                return;
+            }
+            registrationsSincePurge = 0;
+        }
+        long now = System.currentTimeMillis();
+        retired.values().removeIf(reusableAt -> reusableAt <= now);
+    }
+}
@@ -0,0 +1,144 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Values this node has recently read from other nodes, so repeated reads skip the lookup.
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//holds at most capacity keys in least recently used order, each for ttlMillis after it
+//was fetched. a key is either cached with its value or cached as missing, which only
+//exists() uses, since a key that did not exist a moment ago is what it most often
+//asks about. anything cached may be up to ttlMillis out of date.
+//
+//writes made by this node invalidate the key. a lookup that was already under way
+//when its key was invalidated does not put its result in the cache, since it may have
+//fetched the value from before the write. invalidations are counted in STAMP_SLOTS
+//counters picked by the key's hash, so a write only holds back lookups of its own key
+//and the few that share its counter
+class ReadCache {
+
+    private static final class Entry {
+        final String value;     // null when the key was found not to exist
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMillis;
+    private static final int STAMP_SLOTS = 1024;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final long[] invalidations = new long[STAMP_SLOTS];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    ReadCache(int capacity, long ttlMillis) {
+        if (capacity < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Read cache capacity and ttl must be at least 1.");
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ReadCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    //the cached value of the key, or null if it is not cached with a value
+    synchronized String value(String key) {
+        Entry entry = live(key);
+        if (entry == null || entry.value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    //TRUE or FALSE if it is cached whether the key exists, null if it is not cached
+    synchronized Boolean exists(String key) {
+        Entry entry = live(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value != null;
+    }
+
+    //taken before a lookup of the key and passed to put afterwards
+    synchronized long stamp(String key) {
+        return invalidations[slot(key)];
+    }
+
+    //caches the result of a lookup that started at stamp, value null meaning it does not exist
+    synchronized void put(String key, String value, long stamp) {
+        if (stamp != invalidations[slot(key)]) {
+            return;
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    synchronized void invalidate(String key) {
+        invalidations[slot(key)]++;
+        entries.remove(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    //entries dropped to make room, not counting those that expired
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    long getExpiredCount() {
+        return expirations.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d hits=%d misses=%d evictions=%d expired=%d",
+                entries.size(), hits.get(), misses.get(), evictions.get(), expirations.get());
+    }
+
+    private static int slot(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STAMP_SLOTS - 1);
+    }
+
+    //the entry for the key if it has not expired, dropping it if it has
+    private Entry live(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            expirations.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+}
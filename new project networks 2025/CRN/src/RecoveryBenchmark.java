@@ -0,0 +1,80 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Measures how long a LogStructuredStore takes to load its log when a node starts,
+// for logs of increasing size. Each log is written with some keys overwritten many
+// times so compaction has work to do, then the store is closed and reopened and the
+// recovered values are checked. A torn record is then added to the end of the last
+// log to check that recovery cuts it off and keeps everything before it.
+//
+// Usage: java RecoveryBenchmark [directory]
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+class RecoveryBenchmark {
+    public static void main(String[] args) {
+        try {
+            Path directory = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("crn-recovery");
+            Path log = null;
+            boolean allCorrect = true;
+
+            System.out.println("writes     keys       log (MB)   write (ms)   recover (ms)   records");
+            for (int writes : new int[]{10_000, 100_000, 1_000_000}) {
+                int keys = writes / 4;
+                log = directory.resolve("store-" + writes + ".log");
+                Files.deleteIfExists(log);
+
+                long start = System.nanoTime();
+                LogStructuredStore store = new LogStructuredStore(log);
+                for (int i = 0; i < writes; ++i) {
+                    store.put("D:key" + (i % keys), "value " + i + " for a key that is written " + (writes / keys) + " times");
+                }
+                store.close();
+                double writeMillis = (System.nanoTime() - start) / 1_000_000.0;
+                double megabytes = Files.size(log) / (1024.0 * 1024.0);
+
+                start = System.nanoTime();
+                LogStructuredStore recovered = new LogStructuredStore(log);
+                double recoverMillis = (System.nanoTime() - start) / 1_000_000.0;
+                boolean correct = recovered.size() == keys && check(recovered, writes, keys);
+                allCorrect &= correct;
+                System.out.printf("%-10d %-10d %-10.1f %-12.0f %-14.1f %d%s%n", writes, keys, megabytes,
+                        writeMillis, recoverMillis, recovered.logRecords(), correct ? "" : "  WRONG");
+                recovered.close();
+            }
+
+            // A record whose body never made it to disk
+            try (FileChannel out = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                out.write(ByteBuffer.allocate(12).putInt(0, 1000).putInt(4, 1234).putInt(8, 5));
+            }
+            long sizeWithTornRecord = Files.size(log);
+            LogStructuredStore recovered = new LogStructuredStore(log);
+            boolean truncated = Files.size(log) == sizeWithTornRecord - 12 && check(recovered, 1_000_000, 250_000);
+            recovered.close();
+            System.out.println("Torn record  : " + (truncated ? "cut off" : "NOT HANDLED"));
+
+            System.exit(allCorrect && truncated ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Exception during RecoveryBenchmark");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    // Every key should hold the value from the last time it was written
+    static boolean check(LogStructuredStore store, int writes, int keys) {
+        for (int k = 0; k < keys; ++k) {
+            int last = writes - keys + k;
+            String expected = "value " + last + " for a key that is written " + (writes / keys) + " times";
+            if (!expected.equals(store.get("D:key" + k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
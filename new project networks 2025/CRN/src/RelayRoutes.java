@@ -0,0 +1,110 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The requests this node has relayed and where their replies have to go back to.
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//a relayed request is sent on with a transaction id reserved from this node's own
+//pending requests, so its reply can be told apart from replies to requests this node
+//sent itself. the route maps that id back to the requester and the id of its V
+//message. a retransmitted V message reuses its route, so the node it is relayed to
+//sees the same transaction id again and answers from its reply cache. routes are kept
+//in arrival order and dropped once they expire or there are more than capacity
+final class RelayRoutes {
+
+    //one relayed request: who asked and with what id, and where it was sent on to
+    static final class Route {
+        final InetSocketAddress requester;
+        final String requesterTransactionId;
+        final InetSocketAddress next;
+        final String forwardedTransactionId;
+        final long createdAt;
+
+        Route(InetSocketAddress requester, String requesterTransactionId,
+              InetSocketAddress next, String forwardedTransactionId, long createdAt) {
+            this.requester = requester;
+            this.requesterTransactionId = requesterTransactionId;
+            this.next = next;
+            this.forwardedTransactionId = forwardedTransactionId;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final int capacity;
+    private final long expiryMillis;
+    private final PendingRequests transactionIds;
+    private final LinkedHashMap<TransactionKey, Route> byRequest = new LinkedHashMap<>();
+    private final Map<TransactionKey, Route> byForwarded = new HashMap<>();
+    // read without the lock by the listener so it can skip the lookup when nothing is relayed
+    private volatile int size = 0;
+
+    RelayRoutes(int capacity, long expiryMillis, PendingRequests transactionIds) {
+        this.capacity = capacity;
+        this.expiryMillis = expiryMillis;
+        this.transactionIds = transactionIds;
+    }
+
+    //the route for a V message from the requester that is being relayed to next,
+    //reusing the route made for an earlier copy of the same message
+    synchronized Route route(InetSocketAddress requester, String requesterTransactionId, InetSocketAddress next) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        TransactionKey key = new TransactionKey(requester, requesterTransactionId);
+        Route existing = byRequest.get(key);
+        if (existing != null) {
+            if (existing.next.equals(next)) {
+                return existing;
+            }
+            remove(byRequest.remove(key));
+        }
+        Route route = new Route(requester, requesterTransactionId, next, transactionIds.reserve(next), now);
+        byRequest.put(key, route);
+        byForwarded.put(new TransactionKey(next, route.forwardedTransactionId), route);
+        if (byRequest.size() > capacity) {
+            Iterator<Route> oldestFirst = byRequest.values().iterator();
+            remove(oldestFirst.next());
+            oldestFirst.remove();
+        }
+        size = byRequest.size();
+        return route;
+    }
+
+    //the route a reply from sender with this transaction id belongs to, or null if it
+    //is not the reply to a relayed request
+    synchronized Route replyRoute(InetSocketAddress sender, String transactionId) {
+        expire(System.currentTimeMillis());
+        return byForwarded.get(new TransactionKey(sender, transactionId));
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void expire(long now) {
+        Iterator<Route> oldestFirst = byRequest.values().iterator();
+        while (oldestFirst.hasNext()) {
+            Route route = oldestFirst.next();
+            if (now - route.createdAt <= expiryMillis) {
+                break;
+            }
+            remove(route);
+            oldestFirst.remove();
+        }
+        size = byRequest.size();
+    }
+
+    //drops the reply side of a route and gives its transaction id back
+    private void remove(Route route) {
+        byForwarded.remove(new TransactionKey(route.next, route.forwardedTransactionId));
+        transactionIds.release(route.next, route.forwardedTransactionId);
+    }
+}
@@ -0,0 +1,75 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks that requests sent through a stack of relays reach their node and that the
+// replies find their way back. Node 0 relays through node 1 and node 2 to reach node 3,
+// which holds the key. Node 0 is given a dead address for node 3, so the read can only
+// succeed if node 0 addresses it by name through the relays and each relay sends the
+// reply back to the node that asked it.
+//
+// Usage: java RelayTest [numberOfReads]
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+class RelayTest {
+    public static void main(String[] args) {
+        int numberOfReads = 20;
+        if (args.length > 0) {
+            numberOfReads = Integer.parseInt(args[0]);
+        }
+
+        try {
+            String[] names = {"N:relay-client", "N:relay-first", "N:relay-second", "N:relay-target"};
+            Node[] nodes = new Node[names.length];
+            for (int i = 0; i < names.length; ++i) {
+                nodes[i] = new Node();
+                nodes[i].setNodeName(names[i]);
+                nodes[i].openPort(20110 + i);
+            }
+            // Nothing listens here, it stands in for a node that cannot be reached directly
+            DatagramSocket unreachable = new DatagramSocket(20110 + names.length);
+
+            DatagramSocket ds = new DatagramSocket();
+            send(ds, 0, "aa W 0 " + names[1] + " 0 127.0.0.1:20111 ");
+            send(ds, 0, "ab W 0 " + names[3] + " 0 127.0.0.1:" + unreachable.getLocalPort() + " ");
+            send(ds, 1, "ac W 0 " + names[2] + " 0 127.0.0.1:20112 ");
+            send(ds, 2, "ad W 0 " + names[3] + " 0 127.0.0.1:20113 ");
+            send(ds, 2, "ae W 0 " + names[1] + " 0 127.0.0.1:20111 ");
+            send(ds, 3, "af W 0 D:relayed 1 relayed value ");
+            ds.close();
+            Thread.sleep(500);
+
+            nodes[0].pushRelay(names[1]);
+            nodes[0].pushRelay(names[2]);
+
+            int correct = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < numberOfReads; ++i) {
+                if ("relayed value".equals(nodes[0].read("D:relayed"))) {
+                    ++correct;
+                }
+            }
+            double millis = (System.nanoTime() - start) / 1_000_000.0 / numberOfReads;
+
+            System.out.println("Relayed reads : " + correct + "/" + numberOfReads + " correct");
+            System.out.printf("Mean (ms)     : %.2f%n", millis);
+            unreachable.close();
+            System.exit(correct > 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Exception during RelayTest");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    // Sends a message to node i twice in case the node drops one
+    static void send(DatagramSocket ds, int i, String message) throws Exception {
+        byte[] contents = message.getBytes(StandardCharsets.UTF_8);
+        for (int copy = 0; copy < 2; ++copy) {
+            ds.send(new DatagramPacket(contents, contents.length, InetAddress.getLoopbackAddress(), 20110 + i));
+        }
+    }
+}
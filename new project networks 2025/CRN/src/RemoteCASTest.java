@@ -0,0 +1,146 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks that CAS stays atomic when the counters live on other nodes, so every swap is
+// a C request that the replicas compare and swap themselves. A number of nodes share an
+// in-memory network and threads on different nodes increment the same counters with a
+// read / CAS retry loop, over a network that drops one datagram in ten unless told
+// otherwise, so C requests are retransmitted. Every counter has to end up exactly right:
+// a lost increment leaves it short and a swap made twice leaves it over.
+// It also reports how many datagrams each CAS took, which should be one request and
+// one reply per replica.
+//
+// Usage: java RemoteCASTest [numberOfNodes] [numberOfThreads] [incrementsPerThread] [loss]
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+class RemoteCASTest {
+    public static void main(String[] args) {
+        int numberOfNodes = 12;
+        int numberOfThreads = 8;
+        int incrementsPerThread = 500;
+        int numberOfCounters = 4;
+        double loss = 0.1;
+
+        if (args.length > 0) {
+            numberOfNodes = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            numberOfThreads = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            incrementsPerThread = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            loss = Double.parseDouble(args[3]);
+        }
+
+        SimulatedNetwork network = new SimulatedNetwork(2);
+        try {
+            Node[] nodes = new Node[numberOfNodes];
+            InetSocketAddress[] addresses = new InetSocketAddress[numberOfNodes];
+            for (int i = 0; i < numberOfNodes; ++i) {
+                nodes[i] = new Node();
+                nodes[i].setNodeName("N:sim" + i);
+                addresses[i] = SimulationHarness.simulatedAddress(i);
+                nodes[i].open(network.endpoint(addresses[i]));
+            }
+            SimulationHarness.bootstrap(nodes, addresses, false, network);
+            for (Node node : nodes) {
+                node.exists("D:warm-up");
+            }
+
+            for (int c = 0; c < numberOfCounters; ++c) {
+                if (!nodes[0].write("D:counter-" + c, "0")) {
+                    throw new IllegalStateException("Could not store D:counter-" + c);
+                }
+            }
+            network.setConditions(loss, 200, 200);
+
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[numberOfThreads];
+            long[] retries = new long[numberOfThreads];
+            long[] swaps = new long[numberOfThreads];
+            int increments = incrementsPerThread;
+            int counters = numberOfCounters;
+            for (int t = 0; t < numberOfThreads; ++t) {
+                int id = t;
+                // Spread the threads over the nodes so some are replicas and some are not
+                Node node = nodes[t % numberOfNodes];
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < increments; ++i) {
+                            String key = "D:counter-" + (i % counters);
+                            while (true) {
+                                String current = node.read(key);
+                                String next = Integer.toString(Integer.parseInt(current) + 1);
+                                ++swaps[id];
+                                if (node.CAS(key, current, next)) {
+                                    break;
+                                }
+                                ++retries[id];
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Unhandled exception in thread " + id);
+                        e.printStackTrace(System.err);
+                    }
+                });
+                threads[t].start();
+            }
+
+            long deliveredBefore = network.getDeliveredCount();
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            long elapsed = System.nanoTime() - startTime;
+            long delivered = network.getDeliveredCount() - deliveredBefore;
+            network.setConditions(0, 0, 0);
+
+            long totalRetries = 0;
+            long totalSwaps = 0;
+            for (int t = 0; t < numberOfThreads; ++t) {
+                totalRetries += retries[t];
+                totalSwaps += swaps[t];
+            }
+
+            boolean exact = true;
+            for (int c = 0; c < numberOfCounters; ++c) {
+                int expected = numberOfThreads * ((incrementsPerThread - c + numberOfCounters - 1) / numberOfCounters);
+                // Ask a node that did not take part, so the answer comes off the network. A read
+                // can be answered by a replica the new value has not reached yet, so the check
+                // is a swap of the expected value for itself, which only the closest replica
+                // decides and only succeeds if that is exactly what it holds
+                Node checker = nodes[numberOfNodes - 1];
+                String key = "D:counter-" + c;
+                String value = checker.read(key);
+                boolean matches = checker.CAS(key, Integer.toString(expected), Integer.toString(expected));
+                System.out.println(key + " = " + value + " (expected " + expected + (matches ? ", matched" : ", did not match") + ")");
+                if (!matches) {
+                    exact = false;
+                }
+            }
+            System.out.println("Increments   : " + numberOfThreads * incrementsPerThread);
+            System.out.println("CAS retries  : " + totalRetries);
+            System.out.printf("Datagrams    : %.1f per read and CAS%n", (double) delivered / totalSwaps);
+            System.out.println("Time (ms)    : " + elapsed / 1_000_000);
+
+            network.shutdown();
+            if (exact) {
+                System.out.println("Every counter is exact");
+                System.exit(0);
+            } else {
+                System.out.println("Counters are wrong!");
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            System.err.println("Exception during RemoteCASTest");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
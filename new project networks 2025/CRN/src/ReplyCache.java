@@ -0,0 +1,86 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Remembers the requests a node has already handled and the replies it sent.
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//requests are keyed by sender and transaction id. a request seen again is a
+//retransmission, so rather than handling it twice the reply that was already sent
+//is sent again. there are only so many transaction ids, so a sender will use one
+//again for a different request once it has been free for a while. the bytes of
+//each request are kept and only an exact copy counts as a retransmission, anything
+//else under the same id is a new request and replaces the entry. an entry lasts
+//expiryMillis from the last copy of its request, so a request that is retransmitted
+//for longer than that still gets its first reply. entries are kept in the order they
+//were last seen so the oldest is always at the head, which makes both expiry and
+//eviction O(1)
+class ReplyCache {
+
+    //a request that has been handled, reply is null until one has been sent
+    static final class Entry {
+        private long lastSeenAt;
+        final byte[] request;
+        volatile byte[] reply;
+
+        Entry(long lastSeenAt, byte[] request) {
+            this.lastSeenAt = lastSeenAt;
+            this.request = request;
+        }
+    }
+
+    private final int capacity;
+    private final long expiryMillis;
+    private final LinkedHashMap<TransactionKey, Entry> entries;
+
+    ReplyCache(int capacity, long expiryMillis) {
+        this.capacity = capacity;
+        this.expiryMillis = expiryMillis;
+        this.entries = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TransactionKey, Entry> eldest) {
+                return size() > ReplyCache.this.capacity;
+            }
+        };
+    }
+
+    //records a newly arrived request, request being its bytes after the transaction id.
+    //returns null if it has not been seen before, otherwise the entry for the earlier
+    //copy, whose reply should be sent again
+    synchronized Entry claim(InetSocketAddress sender, String transactionId, byte[] request) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        TransactionKey key = new TransactionKey(sender, transactionId);
+        Entry existing = entries.remove(key);
+        if (existing != null && Arrays.equals(existing.request, request)) {
+            // Back to the end, as the most recently seen
+            existing.lastSeenAt = now;
+            entries.put(key, existing);
+            return existing;
+        }
+        entries.put(key, new Entry(now, request));
+        return null;
+    }
+
+    //the entry for a request that is being handled, or null if it has been evicted or
+    //replaced by a different request with the same id
+    synchronized Entry get(InetSocketAddress sender, String transactionId, byte[] request) {
+        Entry entry = entries.get(new TransactionKey(sender, transactionId));
+        return entry != null && Arrays.equals(entry.request, request) ? entry : null;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> oldestFirst = entries.values().iterator();
+        while (oldestFirst.hasNext() && now - oldestFirst.next().lastSeenAt > expiryMillis) {
+            oldestFirst.remove();
+        }
+    }
+}
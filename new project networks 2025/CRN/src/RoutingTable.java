@@ -0,0 +1,185 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Kademlia style routing table, the nodes this node knows the address of.
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//nodes are put in buckets by how many leading bits their hashID shares with ours,
+//and each bucket holds at most bucketSize of them in least recently seen first order.
+//when a bucket is full the newcomer waits while the oldest entry is pinged, and it
+//only takes that entry's place if the ping goes unanswered. a rebase keeps every
+//entry, so a bucket can hold more than bucketSize after one, and it shrinks back as
+//pings find its oldest entries gone
+class RoutingTable {
+
+    //a node's name, hashID and the address it was last seen at
+    static final class Entry {
+        final String name;
+        final HashKey hash;
+        final InetSocketAddress address;
+
+        Entry(String name, HashKey hash, InetSocketAddress address) {
+            this.name = name;
+            this.hash = hash;
+            this.address = address;
+        }
+    }
+
+    private final HashKey self;
+    private final int bucketSize;
+    private final List<LinkedHashMap<String, Entry>> buckets = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<InetSocketAddress, Entry> byAddress = new HashMap<>();
+    // newcomers waiting on the ping of a full bucket's oldest entry, one per bucket
+    private final Map<Integer, Entry> waiting = new HashMap<>();
+
+    RoutingTable(HashKey self, int bucketSize) {
+        this.self = self;
+        this.bucketSize = bucketSize;
+        for (int i = 0; i <= HashKey.BITS; i++) {
+            buckets.add(new LinkedHashMap<>());
+        }
+    }
+
+    //adds a node or marks it as just seen. returns null if that is all there was to do,
+    //otherwise the bucket is full and the returned oldest entry should be pinged, with
+    //the result passed to pingAnswered or pingFailed
+    synchronized Entry offer(Entry entry) {
+        if (entry.hash.equals(self)) {
+            return null;
+        }
+        LinkedHashMap<String, Entry> bucket = bucketFor(entry.hash);
+        if (bucket.remove(entry.name) != null || bucket.size() < bucketSize) {
+            insert(bucket, entry);
+            return null;
+        }
+
+        int index = self.matchingBits(entry.hash);
+        boolean pingInProgress = waiting.containsKey(index);
+        waiting.put(index, entry);
+        return pingInProgress ? null : bucket.values().iterator().next();
+    }
+
+    //the oldest entry answered, so it stays and the waiting newcomer is dropped
+    synchronized void pingAnswered(Entry oldest) {
+        waiting.remove(self.matchingBits(oldest.hash));
+        touch(oldest.address);
+    }
+
+    //the oldest entry did not answer, so the waiting newcomer replaces it, if that
+    //leaves room for it
+    synchronized void pingFailed(Entry oldest) {
+        Entry newcomer = waiting.remove(self.matchingBits(oldest.hash));
+        if (remove(oldest.name) && newcomer != null && bucketFor(newcomer.hash).size() < bucketSize) {
+            insert(bucketFor(newcomer.hash), newcomer);
+        }
+    }
+
+    //moves the node at this address to the most recently seen end of its bucket
+    synchronized void touch(InetSocketAddress address) {
+        Entry entry = byAddress.get(address);
+        if (entry != null) {
+            LinkedHashMap<String, Entry> bucket = bucketFor(entry.hash);
+            bucket.remove(entry.name);
+            bucket.put(entry.name, entry);
+        }
+    }
+
+    synchronized boolean remove(String name) {
+        Entry entry = byName.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        bucketFor(entry.hash).remove(name);
+        byAddress.remove(entry.address, entry);
+        return true;
+    }
+
+    synchronized Entry get(String name) {
+        return byName.get(name);
+    }
+
+    synchronized InetSocketAddress address(String name) {
+        Entry entry = byName.get(name);
+        return entry == null ? null : entry.address;
+    }
+
+    //the name of the node last seen at this address, or null
+    synchronized String name(InetSocketAddress address) {
+        Entry entry = byAddress.get(address);
+        return entry == null ? null : entry.name;
+    }
+
+    synchronized boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    synchronized int size() {
+        return byName.size();
+    }
+
+    synchronized Set<String> names() {
+        return new HashSet<>(byName.keySet());
+    }
+
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(byName.values());
+    }
+
+    //the k known nodes closest to the target. only the buckets that can hold them are
+    //looked at: the bucket sharing the target's prefix with us first, then the buckets
+    //closer to us than the target (all equally far from it), then the further ones
+    synchronized List<Entry> closest(HashKey target, int k) {
+        List<Entry> found = new ArrayList<>();
+        int shared = self.matchingBits(target);
+        if (shared < HashKey.BITS) {
+            found.addAll(buckets.get(shared).values());
+        }
+        if (found.size() < k) {
+            for (int i = shared + 1; i < HashKey.BITS; i++) {
+                found.addAll(buckets.get(i).values());
+            }
+        }
+        for (int i = Math.min(shared, HashKey.BITS) - 1; i >= 0 && found.size() < k; i--) {
+            found.addAll(buckets.get(i).values());
+        }
+        found.sort((a, b) -> target.compareDistance(a.hash, b.hash));
+        return found.size() > k ? new ArrayList<>(found.subList(0, k)) : found;
+    }
+
+    //a copy of this table for a different hashID of our own, used when the node is renamed.
+    //the entries go straight into their new buckets, full or not, since offering them
+    //would leave the ones that do not fit waiting on pings that nobody sends
+    synchronized RoutingTable rebase(HashKey newSelf) {
+        RoutingTable table = new RoutingTable(newSelf, bucketSize);
+        for (LinkedHashMap<String, Entry> bucket : buckets) {
+            for (Entry entry : bucket.values()) {
+                if (!entry.hash.equals(newSelf)) {
+                    table.insert(table.bucketFor(entry.hash), entry);
+                }
+            }
+        }
+        return table;
+    }
+
+    private LinkedHashMap<String, Entry> bucketFor(HashKey hash) {
+        return buckets.get(self.matchingBits(hash));
+    }
+
+    private void insert(LinkedHashMap<String, Entry> bucket, Entry entry) {
+        Entry previous = byName.put(entry.name, entry);
+        if (previous != null && previous != entry) {
+            byAddress.remove(previous.address, previous);
+        }
+        bucket.put(entry.name, entry);
+        byAddress.put(entry.address, entry);
+    }
+}
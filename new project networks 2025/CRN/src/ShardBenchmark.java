@@ -0,0 +1,115 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Measures how many datagrams a node can take in per second on loopback as the number
+// of sockets it reads its port with grows. For each shard count a node is opened with
+// setReceiveShards and a number of sender threads, each with a socket of its own so the
+// kernel spreads them over the shards, flood it with R requests for a key it holds
+// while draining the S replies. It reports the requests the node received, the replies
+// the senders got back and the requests the workers had to drop, all per second.
+// The node's own simulated loss still drops one in ten datagrams on arrival.
+//
+// Usage: java ShardBenchmark [shardCounts e.g. 1,2,4] [senders] [seconds]
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ShardBenchmark {
+    public static void main(String[] args) {
+        String shardCounts = "1,2,4";
+        int senders = 8;
+        int seconds = 3;
+        if (args.length > 0) {
+            shardCounts = args[0];
+        }
+        if (args.length > 1) {
+            senders = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            seconds = Integer.parseInt(args[2]);
+        }
+
+        try {
+            System.out.println(senders + " senders, " + seconds + " s per run, "
+                    + Runtime.getRuntime().availableProcessors() + " cores");
+            System.out.println("shards   received/s   replies/s    dropped/s");
+            int port = 20110;
+            for (String count : shardCounts.split(",")) {
+                run(Integer.parseInt(count.trim()), port++, senders, seconds);
+            }
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Exception during ShardBenchmark");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    static void run(int shards, int port, int senders, int seconds) throws Exception {
+        Node node = new Node();
+        node.setNodeName("N:shard-bench" + shards);
+        node.setReceiveShards(shards);
+        node.setProbeInterval(0);
+        node.openPort(port);
+        node.write("D:shard-bench", "a value that is a little longer than the key");
+
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong replies = new AtomicLong();
+        Thread[] threads = new Thread[senders];
+        for (int t = 0; t < senders; ++t) {
+            threads[t] = new Thread(() -> {
+                try (DatagramChannel channel = DatagramChannel.open()) {
+                    channel.configureBlocking(false);
+                    channel.bind(new InetSocketAddress("127.0.0.1", 0));
+                    byte[] request = "   R 0 D:shard-bench ".getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer out = ByteBuffer.wrap(request);
+                    ByteBuffer in = ByteBuffer.allocate(CrnWriter.MAX_DATAGRAM);
+                    int i = 0;
+                    while (running.get()) {
+                        // Transaction ids cycle through more than the reply cache holds
+                        request[0] = (byte) ('!' + (i / 94) % 94);
+                        request[1] = (byte) ('!' + i % 94);
+                        ++i;
+                        out.clear();
+                        channel.send(out, target);
+                        while (channel.receive(in) != null) {
+                            replies.incrementAndGet();
+                            in.clear();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            threads[t].start();
+        }
+
+        // Let the JIT and the queues settle before measuring
+        Thread.sleep(500);
+        long receivedBefore = received(node);
+        long repliesBefore = replies.get();
+        long droppedBefore = node.getDroppedRequests();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long receivedCount = received(node) - receivedBefore;
+        long replyCount = replies.get() - repliesBefore;
+        long droppedCount = node.getDroppedRequests() - droppedBefore;
+
+        running.set(false);
+        for (Thread t : threads) {
+            t.join();
+        }
+        System.out.printf("%-8d %-12.0f %-12.0f %-12.0f%n", shards,
+                receivedCount / elapsed, replyCount / elapsed, droppedCount / elapsed);
+    }
+
+    static long received(Node node) {
+        return node.getMetrics().snapshot().received.getOrDefault('R', 0L);
+    }
+}
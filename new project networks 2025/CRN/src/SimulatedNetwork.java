@@ -0,0 +1,196 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// An in-memory datagram network for running many nodes in one process.
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+//every datagram is copied when it is sent and delivered after latency plus up to jitter,
+//unless it is lost, which each one is with probability loss. endpoints are spread over a
+//fixed number of delivery threads and always delivered to on the same one, which keeps
+//the promise that a transport's receiver is never called from two threads at once.
+//
+//an endpoint can be taken down and brought back to simulate churn. while it is down
+//nothing it sends leaves and nothing sent to it arrives, but the node behind it keeps
+//its state, like a machine that drops off the network for a while
+class SimulatedNetwork {
+
+    private final ScheduledExecutorService[] deliveryThreads;
+    private final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+
+    private volatile double loss = 0;
+    private volatile long latencyMicros = 0;
+    private volatile long jitterMicros = 0;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong undeliverable = new AtomicLong();
+
+    SimulatedNetwork(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The network needs at least one delivery thread.");
+        }
+        deliveryThreads = new ScheduledExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "crn-sim-" + i;
+            deliveryThreads[i] = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    //the chance of each datagram being lost, and how long each one takes to arrive
+    void setConditions(double loss, long latencyMicros, long jitterMicros) {
+        if (loss < 0 || loss > 1 || latencyMicros < 0 || jitterMicros < 0) {
+            throw new IllegalArgumentException("Loss must be between 0 and 1 and delays cannot be negative.");
+        }
+        this.loss = loss;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+    }
+
+    //a transport with this address, which nothing else on the network may have
+    Transport endpoint(InetSocketAddress address) {
+        Endpoint endpoint = new Endpoint(address, deliveryThreads[nextEndpoint.getAndIncrement() % deliveryThreads.length]);
+        if (endpoints.putIfAbsent(address, endpoint) != null) {
+            throw new IllegalArgumentException("Address already in use: " + address);
+        }
+        return endpoint;
+    }
+
+    void setDown(InetSocketAddress address, boolean down) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint != null) {
+            endpoint.down = down;
+        }
+    }
+
+    long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    long getLostCount() {
+        return lost.get();
+    }
+
+    //sent to an address that is down, closed or was never there
+    long getUndeliverableCount() {
+        return undeliverable.get();
+    }
+
+    void shutdown() {
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.close();
+        }
+        for (ScheduledExecutorService thread : deliveryThreads) {
+            thread.shutdownNow();
+        }
+    }
+
+    private void send(Endpoint from, ByteBuffer datagram, InetSocketAddress to) {
+        byte[] copy = new byte[datagram.remaining()];
+        datagram.get(copy);
+        if (from.down) {
+            undeliverable.incrementAndGet();
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (loss > 0 && random.nextDouble() < loss) {
+            lost.incrementAndGet();
+            return;
+        }
+        Endpoint target = endpoints.get(to);
+        if (target == null) {
+            undeliverable.incrementAndGet();
+            return;
+        }
+        long delay = latencyMicros + (jitterMicros > 0 ? random.nextLong(jitterMicros + 1) : 0);
+        Runnable delivery = () -> target.deliver(copy, from.address);
+        if (delay == 0) {
+            target.deliveryThread.execute(delivery);
+        } else {
+            target.deliveryThread.schedule(delivery, delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private final class Endpoint implements Transport {
+        final InetSocketAddress address;
+        final ScheduledExecutorService deliveryThread;
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile Receiver receiver;
+        volatile boolean down = false;
+
+        Endpoint(InetSocketAddress address, ScheduledExecutorService deliveryThread) {
+            this.address = address;
+            this.deliveryThread = deliveryThread;
+        }
+
+        //runs on the endpoint's delivery thread
+        void deliver(byte[] datagram, InetSocketAddress sender) {
+            Receiver current = receiver;
+            if (current == null || down || !isOpen()) {
+                undeliverable.incrementAndGet();
+                return;
+            }
+            delivered.incrementAndGet();
+            try {
+                current.receive(ByteBuffer.wrap(datagram), sender);
+            } catch (RuntimeException e) {
+                // One bad datagram must not stop the thread delivering to other endpoints
+            }
+        }
+
+        @Override
+        public void start(Supplier<Receiver> receivers) {
+            this.receiver = receivers.get();
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+            if (!isOpen()) {
+                throw new IOException("Endpoint " + this.address + " is closed.");
+            }
+            SimulatedNetwork.this.send(this, datagram, address);
+        }
+
+        @Override
+        public InetSocketAddress localAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return closed.getCount() > 0;
+        }
+
+        @Override
+        public void awaitClose(long millis) throws InterruptedException {
+            if (millis == 0) {
+                closed.await();
+            } else {
+                closed.await(millis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+            endpoints.remove(address, this);
+        }
+    }
+}
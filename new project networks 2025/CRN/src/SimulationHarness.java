@@ -0,0 +1,302 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Runs hundreds or thousands of nodes in one process and puts a mixed read, write and
+// CAS workload on them. By default the nodes are joined by a SimulatedNetwork with the
+// loss, latency and churn given below. With transport=udp each node gets a loopback
+// port instead, and the 10% loss every node simulates on arrival, but no churn.
+//
+// Each node is told about the next node and a few random others, then every node looks
+// up one key so the routing tables fill in, every key is written once, and then the
+// operations are run from random nodes with at most concurrency of them in flight.
+// It reports the throughput and latency percentiles of each kind of operation, and the
+// hop counts and latencies of the lookups every node made.
+//
+// Usage: java SimulationHarness [name=value ...]
+//   nodes=500          number of nodes
+//   transport=memory   memory or udp
+//   ops=20000          operations in the mixed workload
+//   keys=1000          distinct keys the workload uses
+//   concurrency=64     operations in flight at once
+//   reads=0.75         share of operations that are reads
+//   writes=0.2         share that are writes, the rest are CAS
+//   loss=0.01          chance of any datagram being lost (memory only)
+//   latency=0.5        one way delay in ms (memory only)
+//   jitter=0.5         random extra delay of up to this many ms (memory only)
+//   churn=0            share of nodes that are down at any time, changed every second (memory only)
+//   threads=4          delivery threads (memory) and worker threads shared by all nodes
+//   probe=30000        ms a node may go unheard before it is probed, 0 for no probing
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+class SimulationHarness {
+
+    static final int BASE_PORT = 20110;
+
+    //one kind of operation: how many finished, how many succeeded and how long they took
+    static final class Results {
+        final String name;
+        final Histogram latency = new Histogram();
+        final AtomicLong succeeded = new AtomicLong();
+        long elapsedNanos;
+
+        Results(String name) {
+            this.name = name;
+        }
+
+        void print() {
+            Histogram.Snapshot s = latency.snapshot();
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf("%-8s %-8d %-8d %-10.0f %-8.2f %-8.2f %-8.2f %-8.2f%n", name, s.count(), succeeded.get(),
+                    seconds > 0 ? s.count() / seconds : 0, s.percentile(50) / 1e6, s.percentile(90) / 1e6,
+                    s.percentile(99) / 1e6, s.max() / 1e6);
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        int numberOfNodes = Integer.parseInt(options.getOrDefault("nodes", "500"));
+        boolean udp = options.getOrDefault("transport", "memory").equals("udp");
+        int operations = Integer.parseInt(options.getOrDefault("ops", "20000"));
+        int numberOfKeys = Integer.parseInt(options.getOrDefault("keys", "1000"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        double reads = Double.parseDouble(options.getOrDefault("reads", "0.75"));
+        double writes = Double.parseDouble(options.getOrDefault("writes", "0.2"));
+        double loss = Double.parseDouble(options.getOrDefault("loss", "0.01"));
+        double latency = Double.parseDouble(options.getOrDefault("latency", "0.5"));
+        double jitter = Double.parseDouble(options.getOrDefault("jitter", "0.5"));
+        double churn = Double.parseDouble(options.getOrDefault("churn", "0"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        long probe = Long.parseLong(options.getOrDefault("probe", "30000"));
+
+        SimulatedNetwork network = udp ? null : new SimulatedNetwork(threads);
+        try {
+            // Every node shares the same workers
+            Dispatcher workers = Dispatcher.bounded("crn-sim-workers", threads, threads, 1 << 16);
+            Node[] nodes = new Node[numberOfNodes];
+            InetSocketAddress[] addresses = new InetSocketAddress[numberOfNodes];
+            long start = System.nanoTime();
+            for (int i = 0; i < numberOfNodes; ++i) {
+                nodes[i] = new Node();
+                nodes[i].setNodeName("N:sim" + i);
+                nodes[i].setProbeInterval(probe);
+                nodes[i].shareDispatcher(workers);
+                if (udp) {
+                    addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + i);
+                    nodes[i].openPort(BASE_PORT + i);
+                } else {
+                    addresses[i] = simulatedAddress(i);
+                    nodes[i].open(network.endpoint(addresses[i]));
+                }
+            }
+            System.out.printf("%d nodes on %s started in %.0f ms%n", numberOfNodes,
+                    udp ? "loopback udp" : "the in-memory network", (System.nanoTime() - start) / 1e6);
+
+            bootstrap(nodes, addresses, udp, network);
+            if (!udp) {
+                network.setConditions(loss, (long) (latency * 1000), (long) (jitter * 1000));
+                System.out.printf("loss %.1f%%, latency %.2f ms + up to %.2f ms, churn %.0f%%%n",
+                        loss * 100, latency, jitter, churn * 100);
+            }
+
+            // Which nodes are down, changed every second while churn is on
+            AtomicIntegerArray down = new AtomicIntegerArray(numberOfNodes);
+            ScheduledExecutorService churner = null;
+            if (churn > 0 && !udp) {
+                churner = Executors.newSingleThreadScheduledExecutor();
+                Random churnRandom = new Random(7);
+                churner.scheduleAtFixedRate(() -> {
+                    for (int i = 0; i < numberOfNodes; ++i) {
+                        boolean isDown = churnRandom.nextDouble() < churn;
+                        down.set(i, isDown ? 1 : 0);
+                        network.setDown(addresses[i], isDown);
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+            }
+
+            Random random = new Random(42);
+            Map<String, String> lastWritten = new ConcurrentHashMap<>();
+            System.out.println("phase    ops      ok       ops/s      p50      p90      p99      max (ms)");
+
+            Results join = run("join", numberOfNodes, concurrency, () -> {
+                int i = random.nextInt(numberOfNodes);
+                return nodes[i].existsAsync("D:join-" + i);
+            }, value -> true);
+            join.print();
+
+            int[] nextKey = {0};
+            Results seed = run("seed", numberOfKeys, concurrency, () -> {
+                String key = "D:sim-" + nextKey[0]++;
+                String value = key + " v0";
+                lastWritten.put(key, value);
+                return nodes[upNode(random, down)].writeAsync(key, value);
+            }, stored -> stored);
+            seed.print();
+
+            List<Results> mixed = new ArrayList<>();
+            Results readResults = new Results("read");
+            Results writeResults = new Results("write");
+            Results casResults = new Results("CAS");
+            mixed.add(readResults);
+            mixed.add(writeResults);
+            mixed.add(casResults);
+            long[] version = {1};
+            Semaphore inFlight = new Semaphore(concurrency);
+            start = System.nanoTime();
+            for (int op = 0; op < operations; ++op) {
+                inFlight.acquire();
+                Node client = nodes[upNode(random, down)];
+                String key = "D:sim-" + random.nextInt(numberOfKeys);
+                double choice = random.nextDouble();
+                long opStart = System.nanoTime();
+                if (choice < reads) {
+                    time(client.readAsync(key), readResults, opStart, inFlight, value -> value != null);
+                } else if (choice < reads + writes) {
+                    String value = key + " v" + version[0]++;
+                    lastWritten.put(key, value);
+                    time(client.writeAsync(key, value), writeResults, opStart, inFlight, stored -> stored);
+                } else {
+                    String expected = lastWritten.get(key);
+                    String value = key + " v" + version[0]++;
+                    time(client.casAsync(key, expected, value).thenApply(swapped -> {
+                        if (swapped) {
+                            lastWritten.replace(key, expected, value);
+                        }
+                        return swapped;
+                    }), casResults, opStart, inFlight, swapped -> swapped);
+                }
+            }
+            inFlight.acquire(concurrency);
+            long mixedNanos = System.nanoTime() - start;
+            for (Results results : mixed) {
+                results.elapsedNanos = mixedNanos;
+                results.print();
+            }
+            System.out.printf("mixed    %-8d          %-10.0f%n", operations, operations / (mixedNanos / 1e9));
+
+            // The lookups every node made, put together
+            Histogram.Snapshot hops = null;
+            Histogram.Snapshot lookups = null;
+            long timeouts = 0;
+            for (Node node : nodes) {
+                NodeMetrics.Snapshot snapshot = node.getMetrics().snapshot();
+                hops = hops == null ? snapshot.lookupHops : hops.plus(snapshot.lookupHops);
+                lookups = lookups == null ? snapshot.lookupLatency : lookups.plus(snapshot.lookupLatency);
+                timeouts += snapshot.timeouts;
+            }
+            System.out.printf("lookups  %d, p50 %.2f ms, p99 %.2f ms, hops mean %.2f p99 %d max %d%n", lookups.count(),
+                    lookups.percentile(50) / 1e6, lookups.percentile(99) / 1e6, hops.mean(), hops.percentile(99), hops.max());
+            System.out.println("requests timed out " + timeouts + ", dropped by workers " + nodes[0].getDroppedRequests());
+            if (!udp) {
+                System.out.println("datagrams delivered " + network.getDeliveredCount() + ", lost " + network.getLostCount()
+                        + ", undeliverable " + network.getUndeliverableCount());
+            }
+
+            if (churner != null) {
+                churner.shutdownNow();
+            }
+            if (network != null) {
+                network.shutdown();
+            }
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Exception during SimulationHarness");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    // Runs count operations, at most concurrency at once, and times them all together
+    static <T> Results run(String name, int count, int concurrency, Supplier<CompletableFuture<T>> operation,
+                           Predicate<T> succeeded) throws InterruptedException {
+        Results results = new Results(name);
+        Semaphore inFlight = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            inFlight.acquire();
+            time(operation.get(), results, System.nanoTime(), inFlight, succeeded);
+        }
+        inFlight.acquire(concurrency);
+        results.elapsedNanos = System.nanoTime() - start;
+        return results;
+    }
+
+    static <T> void time(CompletableFuture<T> future, Results results, long start, Semaphore inFlight,
+                         Predicate<T> succeeded) {
+        future.whenComplete((value, error) -> {
+            results.latency.record(System.nanoTime() - start);
+            if (error == null && succeeded.test(value)) {
+                results.succeeded.incrementAndGet();
+            }
+            inFlight.release();
+        });
+    }
+
+    // A random node that is not down at the moment
+    static int upNode(Random random, AtomicIntegerArray down) {
+        while (true) {
+            int i = random.nextInt(down.length());
+            if (down.get(i) == 0) {
+                return i;
+            }
+        }
+    }
+
+    // Node i lives at 10.x.y.z, which only exists on the simulated network
+    static InetSocketAddress simulatedAddress(int i) throws Exception {
+        byte[] ip = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+        return new InetSocketAddress(InetAddress.getByAddress(ip), BASE_PORT);
+    }
+
+    // Tells each node about the next one and a few random others with W messages,
+    // like LocalTest does, but for any number of nodes
+    static void bootstrap(Node[] nodes, InetSocketAddress[] addresses, boolean udp, SimulatedNetwork network) throws Exception {
+        Random r = new Random(23);
+        int n = nodes.length;
+        double p = Math.log((double) n + 5) / (double) n;
+        Transport sender = udp
+                ? new UdpTransport(0, 1 << 16)
+                : network.endpoint(new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, (byte) 255, (byte) 255, (byte) 254}), 1));
+        CrnWriter writer = new CrnWriter();
+        int tx = 0;
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) {
+                if (i != j && (r.nextDouble() <= p || j == (i + 1) % n)) {
+                    // Transaction ids only have to differ between messages to the same node
+                    String id = "" + (char) ('!' + (tx / 94) % 94) + (char) ('!' + tx % 94);
+                    ++tx;
+                    InetSocketAddress address = addresses[j];
+                    writer.begin(id, 'W').string("N:sim" + j).string(address.getAddress().getHostAddress() + ":" + address.getPort());
+                    // Send twice in case the node drops one
+                    for (int copy = 0; copy < (udp ? 2 : 1); ++copy) {
+                        sender.send(writer.flip(), addresses[i]);
+                    }
+                }
+            }
+        }
+        Thread.sleep(udp ? 500 : 100);
+        sender.close();
+    }
+}
@@ -0,0 +1,155 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Compares the memory and collector pauses of ConcurrentKeyValueStore, which holds
+// every entry as Strings in a map, with OffHeapKeyValueStore. Each store is filled with
+// short D: keys and values like the ones nodes keep, and the heap and direct memory it
+// takes are measured after a full collection. Then a mixed load of reads, overwrites and
+// compare and sets is run while every collector pause is recorded, along with how late
+// a thread that sleeps for 1 ms wakes up, which is the delay a reply would see.
+//
+// Usage: java StoreBenchmark [entries] [operations] [map|offheap|both]
+// Give the JVM enough heap for the map store, e.g. java -Xmx2g StoreBenchmark 2000000
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+class StoreBenchmark {
+
+    // Every collector pause while a run is measuring, in microseconds
+    static volatile Histogram pauses = new Histogram();
+
+    public static void main(String[] args) {
+        int entries = 1_000_000;
+        int operations = 5_000_000;
+        String which = "both";
+        if (args.length > 0) {
+            entries = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            operations = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            which = args[2];
+        }
+
+        try {
+            NotificationListener listener = (notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    pauses.record(info.getGcInfo().getDuration() * 1000);
+                }
+            };
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+
+            System.out.println(entries + " entries, " + operations + " operations, max heap "
+                    + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+            System.out.println("store     heap B/entry  direct B/entry  total B/entry  fill (ms)  ops/s       "
+                    + "pauses  pause p99 (ms)  pause max (ms)  wake-up max (ms)  correct");
+            boolean allCorrect = true;
+            if (!which.equals("offheap")) {
+                allCorrect &= run("map", new ConcurrentKeyValueStore(), entries, operations);
+            }
+            if (!which.equals("map")) {
+                allCorrect &= run("offheap", new OffHeapKeyValueStore(), entries, operations);
+            }
+            System.exit(allCorrect ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Exception during StoreBenchmark");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    static boolean run(String name, KeyValueStore store, int entries, int operations) throws Exception {
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; ++i) {
+            store.put("D:key-" + i, "value-" + i);
+        }
+        double fillMillis = (System.nanoTime() - start) / 1_000_000.0;
+        double heapPerEntry = (double) (usedHeap() - heapBefore) / entries;
+        double directPerEntry = (double) (usedDirect() - directBefore) / entries;
+
+        // Wake up every millisecond and note how late it was
+        Histogram wakeUps = new Histogram();
+        AtomicBoolean measuring = new AtomicBoolean(true);
+        Thread sleeper = new Thread(() -> {
+            while (measuring.get()) {
+                long before = System.nanoTime();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wakeUps.record(System.nanoTime() - before - 1_000_000);
+            }
+        });
+        pauses = new Histogram();
+        sleeper.start();
+
+        // Mostly reads, with overwrites that change the value's length and counter style
+        // compare and sets that do not, so both the in place and append paths are used
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        start = System.nanoTime();
+        for (int i = 0; i < operations; ++i) {
+            String key = "D:key-" + random.nextInt(entries);
+            int choice = random.nextInt(10);
+            if (choice < 7) {
+                store.get(key);
+            } else if (choice < 9) {
+                store.put(key, "value-" + random.nextInt(entries) + (choice == 8 ? "-longer" : ""));
+            } else {
+                String current = store.get(key);
+                store.compareAndSet(key, current, current);
+            }
+        }
+        double opsPerSecond = operations / ((System.nanoTime() - start) / 1e9);
+        measuring.set(false);
+        sleeper.join();
+        Histogram.Snapshot pauseSnapshot = pauses.snapshot();
+        Histogram.Snapshot wakeUpSnapshot = wakeUps.snapshot();
+
+        // Every key is still there, and a fresh write reads back
+        boolean correct = store.size() == entries;
+        for (int i = 0; i < entries && correct; i += Math.max(1, entries / 10_000)) {
+            String key = "D:key-" + i;
+            correct = store.get(key) != null && store.compareAndSet(key, store.get(key), "checked-" + i)
+                    && ("checked-" + i).equals(store.get(key));
+        }
+
+        System.out.printf("%-9s %-13.1f %-15.1f %-14.1f %-10.0f %-11.0f %-7d %-15.2f %-15.2f %-17.2f %s%n", name,
+                heapPerEntry, directPerEntry, heapPerEntry + directPerEntry, fillMillis, opsPerSecond,
+                pauseSnapshot.count(), pauseSnapshot.percentile(99) / 1000.0, pauseSnapshot.max() / 1000.0,
+                wakeUpSnapshot.max() / 1_000_000.0, correct ? "yes" : "NO");
+        return correct;
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,38 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Identifies one request on the network: the peer at the other end and its transaction id.
+
+import java.net.InetSocketAddress;
+
+//transaction ids are only two bytes, so different peers will pick the same ones and
+//they only mean something together with the address they came from or went to
+final class TransactionKey {
+
+    final InetSocketAddress peer;
+    final String transactionId;
+
+    TransactionKey(InetSocketAddress peer, String transactionId) {
+        this.peer = peer;
+        this.transactionId = transactionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TransactionKey)) {
+            return false;
+        }
+        TransactionKey other = (TransactionKey) o;
+        return peer.equals(other.peer) && transactionId.equals(other.transactionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * peer.hashCode() + transactionId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return transactionId + "@" + peer;
+    }
+}
@@ -0,0 +1,36 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// How a node sends and receives datagrams.
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+//UdpTransport is one or more real sockets, each with its own listener thread.
+//SimulatedNetwork hands out transports that never leave the process, so that thousands
+//of nodes can run at once. either way each receiver is only ever called from one
+//thread, and the buffer it is given is only valid until it returns
+interface Transport {
+
+    interface Receiver {
+        void receive(ByteBuffer datagram, InetSocketAddress sender);
+    }
+
+    //starts handing arriving datagrams to receivers, asking for a new one for each
+    //thread that will call it, so each can keep its own buffers
+    void start(Supplier<Receiver> receivers) throws IOException;
+
+    //sends the remaining bytes of the buffer, which may be reused as soon as this returns
+    void send(ByteBuffer datagram, InetSocketAddress address) throws IOException;
+
+    InetSocketAddress localAddress();
+
+    boolean isOpen();
+
+    //waits until the transport is closed, or for at most millis when that is not 0
+    void awaitClose(long millis) throws InterruptedException;
+
+    void close();
+}
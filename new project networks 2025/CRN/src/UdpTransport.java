@@ -0,0 +1,163 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A node's UDP sockets and the listener threads that read from them.
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+//each shard is a socket with a listener thread of its own. with more than one shard
+//they are all bound to the same port with SO_REUSEPORT, and the kernel spreads
+//arriving datagrams over them by the sender's address, so a burst from many nodes is
+//read by several threads into several receive queues instead of overflowing one.
+//datagrams from any one sender always land on the same shard.
+//
+//a listener sleeps in select until datagrams arrive and then drains every one that is
+//waiting before going back to sleep, reusing its one buffer for all of them. it is the
+//only thread that ever receives from its socket. one in ten datagrams is dropped on
+//arrival to simulate the packet loss of the lab network
+class UdpTransport implements Transport {
+
+    private static final double SIMULATED_LOSS = 0.1;
+
+    private final DatagramChannel[] channels;
+    private final Selector[] selectors;
+    private final Thread[] listenerThreads;
+    private final int port;
+
+    UdpTransport(int portNumber, int receiveBufferSize) throws IOException {
+        this(portNumber, receiveBufferSize, 1);
+    }
+
+    UdpTransport(int portNumber, int receiveBufferSize, int shards) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A transport needs at least one socket.");
+        }
+        channels = new DatagramChannel[shards];
+        selectors = new Selector[shards];
+        listenerThreads = new Thread[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                if (shards > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IOException("SO_REUSEPORT is not supported here, so only one socket can be opened.");
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                // With port 0 the first socket picks the port and the others join it
+                channel.bind(new InetSocketAddress(i == 0 ? portNumber : channels[0].socket().getLocalPort()));
+                channel.configureBlocking(false);
+                selectors[i] = Selector.open();
+                channel.register(selectors[i], SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        port = channels[0].socket().getLocalPort();
+    }
+
+    int shards() {
+        return channels.length;
+    }
+
+    @Override
+    public void start(Supplier<Receiver> receivers) {
+        for (int i = 0; i < channels.length; i++) {
+            DatagramChannel channel = channels[i];
+            Selector selector = selectors[i];
+            Receiver receiver = receivers.get();
+            String name = channels.length == 1 ? "crn-listener-" + port : "crn-listener-" + port + "-" + i;
+            listenerThreads[i] = new Thread(() -> {
+                try {
+                    receiveMessages(channel, selector, receiver);
+                } catch (IOException | ClosedSelectorException e) {
+                    // The socket was closed or failed, either way there is nothing left to read
+                }
+            }, name);
+            listenerThreads[i].setDaemon(true);
+            listenerThreads[i].start();
+        }
+    }
+
+    private void receiveMessages(DatagramChannel channel, Selector selector, Receiver receiver) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CrnWriter.MAX_DATAGRAM);//buffer for incoming messages
+        while (channel.isOpen() && !Thread.currentThread().isInterrupted()) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            SocketAddress sender;
+            while ((sender = channel.receive(buffer)) != null) {
+                buffer.flip();
+                // Simulate packet loss
+                if (ThreadLocalRandom.current().nextDouble() >= SIMULATED_LOSS) {
+                    receiver.receive(buffer, (InetSocketAddress) sender);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    //every shard has the same port, so it does not matter which one a datagram leaves by
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        channels[0].send(datagram, address);
+    }
+
+    @Override
+    public InetSocketAddress localAddress() {
+        return new InetSocketAddress(port);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channels[0].isOpen();
+    }
+
+    @Override
+    public void awaitClose(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread listener : listenerThreads) {
+            if (listener == null) {
+                continue;
+            }
+            if (millis == 0) {
+                listener.join();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                listener.join(remaining);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < channels.length; i++) {
+            try {
+                if (selectors[i] != null) {
+                    selectors[i].close();
+                }
+                if (channels[i] != null) {
+                    channels[i].close();
+                }
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}